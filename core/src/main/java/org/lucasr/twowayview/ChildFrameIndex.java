@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * Frames of the attached children bucketed by lane, see
+ * {@link TwoWayLayoutManager#findChildViewUnder(float, float)}.
+ *
+ * The secondary axis is split into equally sized buckets, one per lane,
+ * and each child is recorded in every bucket its frame overlaps. Within a
+ * bucket, frames are kept sorted by their start edge along the scrolling
+ * direction, so a hit test is a binary search in a single bucket.
+ *
+ * Frames are stored relative to the accumulated scroll offset, so
+ * offsetting all children along the scrolling direction is O(1).
+ */
+class ChildFrameIndex {
+    private Bucket[] mBuckets = new Bucket[0];
+    private int mBucketCount;
+    private int mBucketOrigin;
+    private int mBucketSize;
+
+    private int mOffset;
+    private int mChildCount;
+    private boolean mIsValid;
+
+    private static class Bucket {
+        private View[] mViews = new View[8];
+        private int[] mStarts = new int[8];
+        private int[] mEnds = new int[8];
+        private int[] mCrossStarts = new int[8];
+        private int[] mCrossEnds = new int[8];
+        private int mCount;
+        private int mMaxExtent;
+
+        void clear() {
+            Arrays.fill(mViews, 0, mCount, null);
+            mCount = 0;
+            mMaxExtent = 0;
+        }
+
+        /**
+         * Returns the index of the first frame starting after the given
+         * offset.
+         */
+        int upperBound(float start) {
+            int low = 0;
+            int high = mCount;
+
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mStarts[mid] <= start) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        void add(View child, int start, int end, int crossStart, int crossEnd) {
+            if (mCount == mViews.length) {
+                final int capacity = mCount * 2;
+                mViews = Arrays.copyOf(mViews, capacity);
+                mStarts = Arrays.copyOf(mStarts, capacity);
+                mEnds = Arrays.copyOf(mEnds, capacity);
+                mCrossStarts = Arrays.copyOf(mCrossStarts, capacity);
+                mCrossEnds = Arrays.copyOf(mCrossEnds, capacity);
+            }
+
+            // Children are added at either end of the layout, so this
+            // is usually the first or the last index.
+            final int index = upperBound(start);
+            final int moved = mCount - index;
+            if (moved > 0) {
+                System.arraycopy(mViews, index, mViews, index + 1, moved);
+                System.arraycopy(mStarts, index, mStarts, index + 1, moved);
+                System.arraycopy(mEnds, index, mEnds, index + 1, moved);
+                System.arraycopy(mCrossStarts, index, mCrossStarts, index + 1, moved);
+                System.arraycopy(mCrossEnds, index, mCrossEnds, index + 1, moved);
+            }
+
+            mViews[index] = child;
+            mStarts[index] = start;
+            mEnds[index] = end;
+            mCrossStarts[index] = crossStart;
+            mCrossEnds[index] = crossEnd;
+            mCount++;
+
+            mMaxExtent = Math.max(mMaxExtent, end - start);
+        }
+
+        boolean remove(View child, int start) {
+            int index = upperBound(start);
+            while (--index >= 0 && mStarts[index] == start) {
+                if (mViews[index] != child) {
+                    continue;
+                }
+
+                final int moved = mCount - index - 1;
+                if (moved > 0) {
+                    System.arraycopy(mViews, index + 1, mViews, index, moved);
+                    System.arraycopy(mStarts, index + 1, mStarts, index, moved);
+                    System.arraycopy(mEnds, index + 1, mEnds, index, moved);
+                    System.arraycopy(mCrossStarts, index + 1, mCrossStarts, index, moved);
+                    System.arraycopy(mCrossEnds, index + 1, mCrossEnds, index, moved);
+                }
+
+                mCount--;
+                mViews[mCount] = null;
+
+                return true;
+            }
+
+            return false;
+        }
+
+        View find(float along, float cross) {
+            // Frames in the same lane don't overlap, so the hit is usually
+            // the last frame starting before the given offset. Only frames
+            // close enough to still reach it have to be checked.
+            int index = upperBound(along);
+            while (--index >= 0 && mStarts[index] >= along - mMaxExtent) {
+                if (along <= mEnds[index] &&
+                        cross >= mCrossStarts[index] && cross <= mCrossEnds[index]) {
+                    return mViews[index];
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Drops all frames and splits the secondary axis in the given number
+     * of buckets, starting at the given origin.
+     */
+    void reset(int bucketCount, int bucketOrigin, int bucketSize) {
+        for (int i = 0; i < mBucketCount; i++) {
+            mBuckets[i].clear();
+        }
+
+        if (bucketCount > mBuckets.length) {
+            final int oldLength = mBuckets.length;
+            mBuckets = Arrays.copyOf(mBuckets, bucketCount);
+            for (int i = oldLength; i < bucketCount; i++) {
+                mBuckets[i] = new Bucket();
+            }
+        }
+
+        mBucketCount = bucketCount;
+        mBucketOrigin = bucketOrigin;
+        mBucketSize = Math.max(1, bucketSize);
+        mOffset = 0;
+        mChildCount = 0;
+        mIsValid = true;
+    }
+
+    void invalidate() {
+        mIsValid = false;
+    }
+
+    /**
+     * Whether the index still matches the given number of attached children.
+     */
+    boolean isValid(int childCount) {
+        return (mIsValid && mChildCount == childCount);
+    }
+
+    /**
+     * Offsets all frames along the scrolling direction.
+     */
+    void offset(int offset) {
+        mOffset += offset;
+    }
+
+    private int getBucket(float cross) {
+        final int bucket = (int) Math.floor((cross - mBucketOrigin) / mBucketSize);
+        return Math.max(0, Math.min(mBucketCount - 1, bucket));
+    }
+
+    void add(View child, int start, int end, int crossStart, int crossEnd) {
+        if (!mIsValid) {
+            return;
+        }
+
+        final int firstBucket = getBucket(crossStart);
+        final int lastBucket = getBucket(Math.max(crossStart, crossEnd - 1));
+        for (int i = firstBucket; i <= lastBucket; i++) {
+            mBuckets[i].add(child, start - mOffset, end - mOffset, crossStart, crossEnd);
+        }
+
+        mChildCount++;
+    }
+
+    /**
+     * Removes the frame of a child, given its current frame. Invalidates
+     * the index if the child was not laid out where it was recorded.
+     */
+    void remove(View child, int start, int crossStart, int crossEnd) {
+        if (!mIsValid) {
+            return;
+        }
+
+        final int firstBucket = getBucket(crossStart);
+        final int lastBucket = getBucket(Math.max(crossStart, crossEnd - 1));
+        for (int i = firstBucket; i <= lastBucket; i++) {
+            if (!mBuckets[i].remove(child, start - mOffset)) {
+                mIsValid = false;
+                return;
+            }
+        }
+
+        mChildCount--;
+    }
+
+    /**
+     * Returns the child whose frame contains the given point, if any.
+     */
+    View find(float along, float cross) {
+        if (mBucketCount == 0) {
+            return null;
+        }
+
+        return mBuckets[getBucket(cross)].find(along - mOffset, cross);
+    }
+}
@@ -94,12 +94,21 @@ abstract class ClickItemTouchListener implements OnItemTouchListener {
             }
         }
 
+        private View findChildViewUnder(float x, float y) {
+            final RecyclerView.LayoutManager layout = mHostView.getLayoutManager();
+            if (layout instanceof TwoWayLayoutManager) {
+                return ((TwoWayLayoutManager) layout).findChildViewUnder(x, y);
+            }
+
+            return mHostView.findChildViewUnder(x, y);
+        }
+
         @Override
         public boolean onDown(MotionEvent event) {
             final int x = (int) event.getX();
             final int y = (int) event.getY();
 
-            mTargetChild = mHostView.findChildViewUnder(x, y);
+            mTargetChild = findChildViewUnder(x, y);
             return (mTargetChild != null);
         }
 
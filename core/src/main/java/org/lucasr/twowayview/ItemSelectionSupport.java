@@ -3,20 +3,32 @@ package org.lucasr.twowayview;
 import android.annotation.TargetApi;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Parcel;
-import android.os.Parcelable;
-import android.support.v4.util.LongSparseArray;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.Adapter;
 import android.util.SparseBooleanArray;
 import android.view.View;
 import android.widget.Checkable;
 
+import java.util.Arrays;
+
 import static android.os.Build.VERSION_CODES.HONEYCOMB;
 
 public class ItemSelectionSupport {
     public static final int INVALID_POSITION = -1;
 
+    /**
+     * Optional interface for adapters with stable ids that can map an item
+     * id back to its position. It lets {@link #onAdapterDataChanged()} find
+     * checked items that moved without searching the adapter.
+     */
+    public interface ItemIdLookup {
+        /**
+         * @return The current position of the item with the given id or
+         *         {@link RecyclerView#NO_POSITION} if there's none.
+         */
+        int getPositionForItemId(long id);
+    }
+
     public static enum ChoiceMode {
         NONE,
         SINGLE,
@@ -31,12 +43,26 @@ public class ItemSelectionSupport {
     private CheckedIdStates mCheckedIdStates;
     private int mCheckedCount;
 
+    // Whether the adapter changed without granular notifications since the
+    // last onAdapterDataChanged(). Added, removed and moved items are applied
+    // to the checked states as they're notified.
+    private boolean mHasPendingDataSetChange = true;
+
+    // Whether the checked ids were not saved and have to be rebuilt from
+    // the checked positions, see onSaveInstanceState().
+    private boolean mHasPendingIdRebuild;
+
+    // Limits on the encoded checked states in the saved state, so that a
+    // large selection can't take most of the 1MB binder transaction limit.
+    // Positions over a span of up to a million items fit as a bitmap.
+    private static final int MAX_SAVED_POSITION_BYTES = 128 * 1024;
+    private static final int MAX_SAVED_ID_BYTES = 64 * 1024;
+
     private static final String STATE_KEY_CHOICE_MODE = "choiceMode";
     private static final String STATE_KEY_CHECKED_STATES = "checkedStates";
     private static final String STATE_KEY_CHECKED_ID_STATES = "checkedIdStates";
-    private static final String STATE_KEY_CHECKED_COUNT = "checkedCount";
-
-    private static final int CHECK_POSITION_SEARCH_DISTANCE = 20;
+    private static final String STATE_KEY_REBUILD_CHECKED_IDS = "rebuildCheckedIds";
+    private static final String STATE_KEY_HAS_CHECKED_STATES = "hasCheckedStates";
 
     private ItemSelectionSupport(RecyclerView recyclerView) {
         mRecyclerView = recyclerView;
@@ -54,6 +80,22 @@ public class ItemSelectionSupport {
         }
     }
 
+    /**
+     * Refreshes the on-screen views for the given range of positions only.
+     */
+    private void updateOnScreenCheckedViews(int start, int count) {
+        final int end = start + count;
+
+        final int childCount = mRecyclerView.getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            final View child = mRecyclerView.getChildAt(i);
+            final int position = mRecyclerView.getChildPosition(child);
+            if (position >= start && position < end) {
+                setViewChecked(child, mCheckedStates.get(position));
+            }
+        }
+    }
+
     /**
      * Returns the number of items currently selected. This will only be valid
      * if the choice mode is not {@link ChoiceMode#NONE} (default).
@@ -100,8 +142,9 @@ public class ItemSelectionSupport {
      * @see #setChoiceMode(ChoiceMode)
      */
     public int getCheckedItemPosition() {
-        if (mChoiceMode == ChoiceMode.SINGLE && mCheckedStates != null && mCheckedStates.size() == 1) {
-            return mCheckedStates.keyAt(0);
+        if (mChoiceMode == ChoiceMode.SINGLE && mCheckedStates != null
+                && mCheckedStates.getCount() == 1) {
+            return mCheckedStates.getRunStart(0);
         }
 
         return INVALID_POSITION;
@@ -111,17 +154,33 @@ public class ItemSelectionSupport {
      * Returns the set of checked items in the list. The result is only valid if
      * the choice mode has not been set to {@link ChoiceMode#NONE}.
      *
+     * <p>Checked positions are stored as ranges internally, so this builds a
+     * new array holding one entry per checked item. Prefer
+     * {@link #isItemChecked(int)} and {@link #getCheckedItemCount()} when
+     * lots of items might be checked.
+     *
      * @return  A SparseBooleanArray which will return true for each call to
      *          get(int position) where position is a position in the list,
      *          or <code>null</code> if the choice mode is set to
      *          {@link ChoiceMode#NONE}.
      */
     public SparseBooleanArray getCheckedItemPositions() {
-        if (mChoiceMode != ChoiceMode.NONE) {
-            return mCheckedStates;
+        if (mChoiceMode == ChoiceMode.NONE) {
+            return null;
         }
 
-        return null;
+        final SparseBooleanArray positions = new SparseBooleanArray();
+        if (mCheckedStates != null) {
+            final int runCount = mCheckedStates.getRunCount();
+            for (int i = 0; i < runCount; i++) {
+                final int end = mCheckedStates.getRunEnd(i);
+                for (int position = mCheckedStates.getRunStart(i); position < end; position++) {
+                    positions.append(position, true);
+                }
+            }
+        }
+
+        return positions;
     }
 
     /**
@@ -140,11 +199,18 @@ public class ItemSelectionSupport {
             return new long[0];
         }
 
-        final int count = mCheckedIdStates.size();
-        final long[] ids = new long[count];
+        rebuildCheckedIdsIfNeeded();
 
-        for (int i = 0; i < count; i++) {
-            ids[i] = mCheckedIdStates.keyAt(i);
+        final long[] ids = new long[mCheckedIdStates.size()];
+
+        int index = 0;
+        final int runCount = mCheckedIdStates.getRunCount();
+        for (int i = 0; i < runCount; i++) {
+            final long firstId = mCheckedIdStates.getRunFirstId(i);
+            final int length = mCheckedIdStates.getRunLength(i);
+            for (int j = 0; j < length; j++) {
+                ids[index++] = firstId + j;
+            }
         }
 
         return ids;
@@ -166,8 +232,7 @@ public class ItemSelectionSupport {
         final Adapter adapter = mRecyclerView.getAdapter();
 
         if (mChoiceMode == ChoiceMode.MULTIPLE) {
-            boolean oldValue = mCheckedStates.get(position);
-            mCheckedStates.put(position, checked);
+            final int delta = mCheckedStates.put(position, checked);
 
             if (mCheckedIdStates != null && adapter.hasStableIds()) {
                 if (checked) {
@@ -177,13 +242,7 @@ public class ItemSelectionSupport {
                 }
             }
 
-            if (oldValue != checked) {
-                if (checked) {
-                    mCheckedCount++;
-                } else {
-                    mCheckedCount--;
-                }
-            }
+            mCheckedCount += delta;
         } else {
             boolean updateIds = mCheckedIdStates != null && adapter.hasStableIds();
 
@@ -207,7 +266,7 @@ public class ItemSelectionSupport {
                 }
 
                 mCheckedCount = 1;
-            } else if (mCheckedStates.size() == 0 || !mCheckedStates.valueAt(0)) {
+            } else if (mCheckedStates.getCount() == 0) {
                 mCheckedCount = 0;
             }
         }
@@ -215,6 +274,84 @@ public class ItemSelectionSupport {
         updateOnScreenCheckedViews();
     }
 
+    /**
+     * Sets the checked state of a range of positions in one go. On-screen
+     * views are refreshed once for the whole range. Checking items is only
+     * valid if the choice mode has been set to {@link ChoiceMode#MULTIPLE},
+     * unchecking them is also valid for {@link ChoiceMode#SINGLE}.
+     *
+     * @param start The first position whose checked state is to be set
+     * @param count The number of positions to set
+     * @param checked The new checked state for the items
+     */
+    public void setItemsChecked(int start, int count, boolean checked) {
+        if (start < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid range: start=" + start
+                    + ", count=" + count);
+        }
+
+        if (mChoiceMode == ChoiceMode.NONE || count == 0) {
+            return;
+        }
+
+        if (mChoiceMode == ChoiceMode.SINGLE) {
+            if (checked) {
+                throw new IllegalStateException("Checking several items requires "
+                        + "ChoiceMode.MULTIPLE");
+            }
+
+            final int checkedPosition = getCheckedItemPosition();
+            if (checkedPosition >= start && checkedPosition < start + count) {
+                setItemChecked(checkedPosition, false);
+            }
+
+            return;
+        }
+
+        final Adapter adapter = mRecyclerView.getAdapter();
+        final boolean updateIds = (mCheckedIdStates != null && adapter.hasStableIds());
+        final int end = start + count;
+
+        if (updateIds) {
+            // Collect the ids that change and apply them in one go, one by
+            // one insertions into the id runs would be quadratic.
+            final long[] ids = new long[count];
+            final int[] positions = new int[count];
+            int changedCount = 0;
+
+            for (int position = start; position < end; position++) {
+                if (mCheckedStates.get(position) != checked) {
+                    ids[changedCount] = adapter.getItemId(position);
+                    positions[changedCount] = position;
+                    changedCount++;
+                }
+            }
+
+            if (checked) {
+                mCheckedIdStates.putAll(ids, positions, changedCount);
+            } else {
+                mCheckedIdStates.deleteAll(ids, changedCount);
+            }
+        }
+
+        mCheckedCount += mCheckedStates.put(start, end, checked);
+
+        updateOnScreenCheckedViews(start, count);
+    }
+
+    /**
+     * Sets the checked state of all the items in the adapter. See
+     * {@link #setItemsChecked(int, int, boolean)}.
+     */
+    public void setAllChecked(boolean checked) {
+        final Adapter adapter = mRecyclerView.getAdapter();
+        if (adapter == null) {
+            return;
+        }
+
+        setItemsChecked(0, adapter.getItemCount(), checked);
+    }
+
     @TargetApi(HONEYCOMB)
     public void setViewChecked(View view, boolean checked) {
         if (view instanceof Checkable) {
@@ -277,65 +414,279 @@ public class ItemSelectionSupport {
         }
     }
 
+    /**
+     * Re-syncs the checked positions with the checked ids after the whole
+     * data set changed, see {@link #onItemsChanged()}. Granular changes are
+     * applied as they're notified and don't need a re-sync. Every checked
+     * id is first verified at its previous position. The ones that moved are looked up through the
+     * adapter if it implements {@link ItemIdLookup}. Otherwise they're
+     * searched for starting around their previous positions and widening
+     * until all of them are found, so items that moved a little are found
+     * quickly. Ids that are gone get unchecked. Note that, without an
+     * {@link ItemIdLookup}, a single checked id that is gone makes the
+     * search go over the whole adapter, i.e. O(itemCount) calls to
+     * {@link Adapter#getItemId(int)}.
+     */
     public void onAdapterDataChanged() {
         final Adapter adapter = mRecyclerView.getAdapter();
-        if (mChoiceMode == ChoiceMode.NONE || adapter == null || !adapter.hasStableIds()) {
+        if (mChoiceMode == ChoiceMode.NONE || adapter == null || !adapter.hasStableIds()
+                || mCheckedIdStates == null || !mHasPendingDataSetChange) {
             return;
         }
 
+        rebuildCheckedIdsIfNeeded();
+
+        mHasPendingDataSetChange = false;
+
         final int itemCount = adapter.getItemCount();
+        final ItemIdLookup itemIdLookup =
+                (adapter instanceof ItemIdLookup ? (ItemIdLookup) adapter : null);
 
         // Clear out the positional check states, we'll rebuild it below from IDs.
         mCheckedStates.clear();
 
-        for (int checkedIndex = 0; checkedIndex < mCheckedIdStates.size(); checkedIndex++) {
-            final long currentId = mCheckedIdStates.keyAt(checkedIndex);
-            final int currentPosition = mCheckedIdStates.valueAt(checkedIndex);
-
-            final long newPositionId = adapter.getItemId(currentPosition);
-            if (currentId != newPositionId) {
-                // Look around to see if the ID is nearby. If not, uncheck it.
-                final int start = Math.max(0, currentPosition - CHECK_POSITION_SEARCH_DISTANCE);
-                final int end = Math.min(currentPosition + CHECK_POSITION_SEARCH_DISTANCE, itemCount);
-
-                boolean found = false;
-                for (int searchPos = start; searchPos < end; searchPos++) {
-                    final long searchId = adapter.getItemId(searchPos);
-                    if (currentId == searchId) {
-                        found = true;
-                        mCheckedStates.put(searchPos, true);
-                        mCheckedIdStates.setValueAt(checkedIndex, searchPos);
-                        break;
+        // Rebuild the id states as well, as the positions of the ids might
+        // break or join the runs they're stored in.
+        final CheckedIdStates checkedIdStates = mCheckedIdStates;
+        mCheckedIdStates = new CheckedIdStates();
+
+        long[] movedIds = null;
+        int movedCount = 0;
+        int movedFirstPosition = itemCount;
+
+        final int runCount = checkedIdStates.getRunCount();
+        for (int run = 0; run < runCount; run++) {
+            final long firstId = checkedIdStates.getRunFirstId(run);
+            final int firstPosition = checkedIdStates.getRunFirstPosition(run);
+            final int length = checkedIdStates.getRunLength(run);
+
+            for (int i = 0; i < length; i++) {
+                final long currentId = firstId + i;
+                final int currentPosition = firstPosition + i;
+
+                if (currentPosition < itemCount
+                        && adapter.getItemId(currentPosition) == currentId) {
+                    putCheckedId(currentId, currentPosition);
+                } else if (itemIdLookup != null) {
+                    final int newPosition = itemIdLookup.getPositionForItemId(currentId);
+                    if (newPosition >= 0 && newPosition < itemCount) {
+                        putCheckedId(currentId, newPosition);
+                    }
+                } else {
+                    if (movedIds == null) {
+                        movedIds = new long[checkedIdStates.size()];
                     }
-                }
 
-                if (!found) {
-                    mCheckedIdStates.delete(currentId);
-                    mCheckedCount--;
-                    checkedIndex--;
+                    movedIds[movedCount++] = currentId;
+                    movedFirstPosition = Math.min(movedFirstPosition, currentPosition);
                 }
-            } else {
-                mCheckedStates.put(currentPosition, true);
             }
         }
+
+        if (movedCount > 0) {
+            findMovedIds(adapter, movedIds, movedCount, movedFirstPosition);
+        }
+
+        mCheckedCount = mCheckedStates.getCount();
+    }
+
+    /**
+     * Finds the new positions of the given ids, using the sorted ids as a
+     * lookup table. The search starts at the first previous position of the
+     * ids and widens in both directions, one position at a time, until all
+     * of them are found. Each adapter position is visited at most once.
+     */
+    private void findMovedIds(Adapter adapter, long[] ids, int count, int firstPosition) {
+        Arrays.sort(ids, 0, count);
+
+        final int[] positions = new int[count];
+        Arrays.fill(positions, RecyclerView.NO_POSITION);
+
+        final int itemCount = adapter.getItemCount();
+        int remaining = count;
+        int low = Math.min(firstPosition, itemCount);
+        int high = low;
+
+        while (remaining > 0 && (low > 0 || high < itemCount)) {
+            if (high < itemCount) {
+                remaining -= findMovedId(adapter, ids, positions, count, high++);
+            }
+
+            if (low > 0 && remaining > 0) {
+                remaining -= findMovedId(adapter, ids, positions, count, --low);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (positions[i] != RecyclerView.NO_POSITION) {
+                putCheckedId(ids[i], positions[i]);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the checked ids from the checked positions if they were not
+     * saved, see {@link #onSaveInstanceState()}. The ids are only rebuilt
+     * once the adapter with stable ids is available.
+     */
+    private void rebuildCheckedIdsIfNeeded() {
+        final Adapter adapter = mRecyclerView.getAdapter();
+        if (!mHasPendingIdRebuild || mCheckedIdStates == null
+                || adapter == null || !adapter.hasStableIds()) {
+            return;
+        }
+
+        mHasPendingIdRebuild = false;
+
+        final int checkedCount = mCheckedStates.getCount();
+        final long[] ids = new long[checkedCount];
+        final int[] positions = new int[checkedCount];
+        int count = 0;
+
+        final int itemCount = adapter.getItemCount();
+        final int runCount = mCheckedStates.getRunCount();
+        for (int run = 0; run < runCount; run++) {
+            final int end = Math.min(mCheckedStates.getRunEnd(run), itemCount);
+            for (int position = mCheckedStates.getRunStart(run); position < end; position++) {
+                ids[count] = adapter.getItemId(position);
+                positions[count] = position;
+                count++;
+            }
+        }
+
+        mCheckedIdStates.clear();
+        mCheckedIdStates.putAll(ids, positions, count);
+    }
+
+    /**
+     * Records the given position for the id of the item at it if it's one
+     * of the given ids. Returns the number of ids found, 0 or 1.
+     */
+    private static int findMovedId(Adapter adapter, long[] ids, int[] positions, int count,
+                                   int position) {
+        final int index = Arrays.binarySearch(ids, 0, count, adapter.getItemId(position));
+        if (index >= 0 && positions[index] == RecyclerView.NO_POSITION) {
+            positions[index] = position;
+            return 1;
+        }
+
+        return 0;
+    }
+
+    private void putCheckedId(long id, int position) {
+        mCheckedStates.put(position, true);
+        mCheckedIdStates.put(id, position);
     }
 
+    public void onItemsAdded(int positionStart, int itemCount) {
+        if (mChoiceMode == ChoiceMode.NONE) {
+            return;
+        }
+
+        mCheckedStates.offsetForAddition(positionStart, itemCount);
+        if (mCheckedIdStates != null) {
+            mCheckedIdStates.offsetForAddition(positionStart, itemCount);
+        }
+    }
+
+    public void onItemsRemoved(int positionStart, int itemCount) {
+        if (mChoiceMode == ChoiceMode.NONE) {
+            return;
+        }
+
+        mCheckedStates.offsetForRemoval(positionStart, itemCount);
+        if (mCheckedIdStates != null) {
+            mCheckedIdStates.offsetForRemoval(positionStart, itemCount);
+        }
+
+        mCheckedCount = mCheckedStates.getCount();
+    }
+
+    public void onItemsMoved(int from, int to, int itemCount) {
+        if (mChoiceMode == ChoiceMode.NONE) {
+            return;
+        }
+
+        // Move the items one by one, starting from the one moving the
+        // furthest so that the others end up at their right positions.
+        for (int i = 0; i < itemCount; i++) {
+            final int offset = (from > to ? i : itemCount - 1 - i);
+            mCheckedStates.move(from + offset, to + offset);
+            if (mCheckedIdStates != null) {
+                mCheckedIdStates.move(from + offset, to + offset);
+            }
+        }
+    }
+
+    /**
+     * Called when the whole data set changed, the checked positions are
+     * re-synced from the checked ids in the next
+     * {@link #onAdapterDataChanged()}.
+     */
+    public void onItemsChanged() {
+        mHasPendingDataSetChange = true;
+    }
+
+    /**
+     * Saves the choice mode and the checked items. The checked ids are left
+     * out if they take more than {@link #MAX_SAVED_ID_BYTES}, they're
+     * rebuilt from the checked positions on restore instead. The checked
+     * positions are left out if they take more than
+     * {@link #MAX_SAVED_POSITION_BYTES}, they're restored from the checked
+     * ids if those were saved. If neither fits, the selection is not saved.
+     */
     public Bundle onSaveInstanceState() {
         final Bundle state = new Bundle();
 
+        byte[] positions = (mCheckedStates != null ? mCheckedStates.toByteArray() : null);
+        if (positions != null && positions.length > MAX_SAVED_POSITION_BYTES) {
+            positions = null;
+        }
+
+        byte[] ids = null;
+        if (mCheckedIdStates != null && !mHasPendingIdRebuild) {
+            ids = mCheckedIdStates.toByteArray();
+            if (ids.length > MAX_SAVED_ID_BYTES) {
+                ids = null;
+            }
+        }
+
         state.putInt(STATE_KEY_CHOICE_MODE, mChoiceMode.ordinal());
-        state.putParcelable(STATE_KEY_CHECKED_STATES, mCheckedStates);
-        state.putParcelable(STATE_KEY_CHECKED_ID_STATES, mCheckedIdStates);
-        state.putInt(STATE_KEY_CHECKED_COUNT, mCheckedCount);
+        state.putByteArray(STATE_KEY_CHECKED_STATES, positions);
+        state.putByteArray(STATE_KEY_CHECKED_ID_STATES, ids);
+        state.putBoolean(STATE_KEY_REBUILD_CHECKED_IDS, (mCheckedIdStates != null && ids == null));
+        state.putBoolean(STATE_KEY_HAS_CHECKED_STATES, mCheckedStates != null);
 
         return state;
     }
 
     public void onRestoreInstanceState(Bundle state) {
         mChoiceMode = ChoiceMode.values()[state.getInt(STATE_KEY_CHOICE_MODE)];
-        mCheckedStates = state.getParcelable(STATE_KEY_CHECKED_STATES);
-        mCheckedIdStates = state.getParcelable(STATE_KEY_CHECKED_ID_STATES);
-        mCheckedCount = state.getInt(STATE_KEY_CHECKED_COUNT);
+
+        final byte[] positions = state.getByteArray(STATE_KEY_CHECKED_STATES);
+        mCheckedStates = (positions != null ? new CheckedStates(positions) : null);
+
+        final byte[] ids = state.getByteArray(STATE_KEY_CHECKED_ID_STATES);
+        mCheckedIdStates = (ids != null ? new CheckedIdStates(ids) : null);
+
+        final boolean rebuildIds = state.getBoolean(STATE_KEY_REBUILD_CHECKED_IDS);
+        if (rebuildIds) {
+            mCheckedIdStates = new CheckedIdStates();
+        }
+
+        if (mCheckedStates == null && state.getBoolean(STATE_KEY_HAS_CHECKED_STATES)) {
+            // The positions didn't fit, take them from the ids if those did.
+            // Otherwise the selection is lost.
+            mCheckedStates = new CheckedStates();
+            if (mCheckedIdStates != null && !rebuildIds) {
+                mCheckedIdStates.getPositions(mCheckedStates);
+            }
+        }
+
+        mHasPendingIdRebuild = rebuildIds;
+        rebuildCheckedIdsIfNeeded();
+
+        mCheckedCount = (mCheckedStates != null ? mCheckedStates.getCount() : 0);
 
         // TODO confirm ids here
     }
@@ -373,99 +724,960 @@ public class ItemSelectionSupport {
         return (ItemSelectionSupport) recyclerView.getTag(R.id.twowayview_item_selection_support);
     }
 
-    private static class CheckedStates extends SparseBooleanArray implements Parcelable {
-        private static final int FALSE = 0;
-        private static final int TRUE = 1;
+    /**
+     * Set of checked positions stored as sorted runs of consecutive
+     * positions, [start, end) each. Selecting a whole range costs a single
+     * run no matter how many items it covers, and lookups are a binary
+     * search over the runs. Runs are saved as varint (gap, length) pairs,
+     * or as a bitmap over their span when that's smaller.
+     */
+    static class CheckedStates {
+        private static final int FORMAT_RUNS = 0;
+        private static final int FORMAT_BITMAP = 1;
+
+        private int[] mStarts;
+        private int[] mEnds;
+        private int mRunCount;
+        private int mCount;
 
         public CheckedStates() {
-            super();
+            mStarts = new int[4];
+            mEnds = new int[4];
         }
 
-        private CheckedStates(Parcel in) {
-            final int size = in.readInt();
-            if (size > 0) {
-                for (int i = 0; i < size; i++) {
-                    final int key = in.readInt();
-                    final boolean value = (in.readInt() == TRUE);
-                    put(key, value);
+        /**
+         * Restores the runs written by {@link #toByteArray()}.
+         */
+        CheckedStates(byte[] bytes) {
+            this();
+
+            final StateReader in = new StateReader(bytes);
+            if (in.readByte() == FORMAT_BITMAP) {
+                final int origin = (int) in.readVarint();
+                final int bitCount = (int) in.readVarint();
+
+                int start = -1;
+                for (int bit = 0; bit < bitCount; bit++) {
+                    if ((bit & 7) == 0) {
+                        in.readByte();
+                    }
+
+                    final boolean checked = in.getBit(bit & 7);
+                    if (checked && start < 0) {
+                        start = origin + bit;
+                    } else if (!checked && start >= 0) {
+                        appendRun(start, origin + bit);
+                        start = -1;
+                    }
+                }
+
+                if (start >= 0) {
+                    appendRun(start, origin + bitCount);
+                }
+            } else {
+                final int runCount = (int) in.readVarint();
+
+                int end = 0;
+                for (int i = 0; i < runCount; i++) {
+                    final int start = end + (int) in.readVarint();
+                    end = start + (int) in.readVarint();
+                    appendRun(start, end);
                 }
             }
         }
 
-        @Override
-        public int describeContents() {
-            return 0;
+        public boolean get(int position) {
+            final int run = upperBoundStart(position) - 1;
+            return (run >= 0 && position < mEnds[run]);
         }
 
-        @Override
-        public void writeToParcel(Parcel parcel, int flags) {
-            final int size = size();
-            parcel.writeInt(size);
+        /**
+         * Returns the number of checked positions.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getRunCount() {
+            return mRunCount;
+        }
 
-            for (int i = 0; i < size; i++) {
-                parcel.writeInt(keyAt(i));
-                parcel.writeInt(valueAt(i) ? TRUE : FALSE);
+        public int getRunStart(int run) {
+            return mStarts[run];
+        }
+
+        public int getRunEnd(int run) {
+            return mEnds[run];
+        }
+
+        public void clear() {
+            mRunCount = 0;
+            mCount = 0;
+        }
+
+        /**
+         * Sets the checked state of a single position. Returns the change
+         * in the number of checked positions.
+         */
+        public int put(int position, boolean checked) {
+            return put(position, position + 1, checked);
+        }
+
+        /**
+         * Sets the checked state of the positions in [start, end). Returns
+         * the change in the number of checked positions.
+         */
+        public int put(int start, int end, boolean checked) {
+            if (start >= end) {
+                return 0;
+            }
+
+            final int delta = (checked ? check(start, end) : uncheck(start, end));
+            mCount += delta;
+
+            return delta;
+        }
+
+        /**
+         * Shifts the runs for items inserted at the given position. The new
+         * items are not checked.
+         */
+        public void offsetForAddition(int positionStart, int itemCount) {
+            int run = upperBoundStart(positionStart - 1);
+
+            // Split the run covering the insertion point, if any.
+            if (run > 0 && mEnds[run - 1] > positionStart) {
+                final int end = mEnds[run - 1];
+                mEnds[run - 1] = positionStart;
+                replaceRuns(run, run, positionStart, end, 0, 0, 1);
+            }
+
+            for (; run < mRunCount; run++) {
+                mStarts[run] += itemCount;
+                mEnds[run] += itemCount;
             }
         }
 
-        public static final Parcelable.Creator<CheckedStates> CREATOR
-                = new Parcelable.Creator<CheckedStates>() {
-            @Override
-            public CheckedStates createFromParcel(Parcel in) {
-                return new CheckedStates(in);
+        /**
+         * Drops the checked states of the removed items and shifts the runs
+         * after them.
+         */
+        public void offsetForRemoval(int positionStart, int itemCount) {
+            final int end = positionStart + itemCount;
+            mCount += uncheck(positionStart, end);
+
+            int run = upperBoundStart(end - 1);
+            for (int i = run; i < mRunCount; i++) {
+                mStarts[i] -= itemCount;
+                mEnds[i] -= itemCount;
             }
 
-            @Override
-            public CheckedStates[] newArray(int size) {
-                return new CheckedStates[size];
+            // The runs around the removed range might touch now.
+            if (run > 0 && run < mRunCount && mEnds[run - 1] == mStarts[run]) {
+                replaceRuns(run - 1, run + 1, mStarts[run - 1], mEnds[run], 0, 0, 1);
+            }
+        }
+
+        public void move(int from, int to) {
+            final boolean checked = get(from);
+
+            offsetForRemoval(from, 1);
+            offsetForAddition(to, 1);
+
+            if (checked) {
+                put(to, true);
             }
-        };
+        }
+
+        private int check(int start, int end) {
+            // Runs overlapping or touching the range get merged into one.
+            final int first = lowerBoundEnd(start);
+            final int last = upperBoundStart(end) - 1;
+
+            if (first > last) {
+                replaceRuns(first, first, start, end, 0, 0, 1);
+                return end - start;
+            }
+
+            int covered = 0;
+            for (int i = first; i <= last; i++) {
+                covered += mEnds[i] - mStarts[i];
+            }
+
+            final int newStart = Math.min(start, mStarts[first]);
+            final int newEnd = Math.max(end, mEnds[last]);
+            replaceRuns(first, last + 1, newStart, newEnd, 0, 0, 1);
+
+            return (newEnd - newStart) - covered;
+        }
+
+        private int uncheck(int start, int end) {
+            // Only runs actually overlapping the range are affected.
+            final int first = lowerBoundEnd(start + 1);
+            final int last = upperBoundStart(end - 1) - 1;
+
+            if (first > last) {
+                return 0;
+            }
+
+            int removed = 0;
+            for (int i = first; i <= last; i++) {
+                removed += Math.min(end, mEnds[i]) - Math.max(start, mStarts[i]);
+            }
+
+            final int headStart = mStarts[first];
+            final int tailEnd = mEnds[last];
+
+            if (headStart < start && tailEnd > end) {
+                replaceRuns(first, last + 1, headStart, start, end, tailEnd, 2);
+            } else if (headStart < start) {
+                replaceRuns(first, last + 1, headStart, start, 0, 0, 1);
+            } else if (tailEnd > end) {
+                replaceRuns(first, last + 1, end, tailEnd, 0, 0, 1);
+            } else {
+                replaceRuns(first, last + 1, 0, 0, 0, 0, 0);
+            }
+
+            return -removed;
+        }
+
+        /**
+         * Replaces the runs in [from, to) with up to two new runs.
+         */
+        private void replaceRuns(int from, int to, int start1, int end1,
+                                 int start2, int end2, int newRunCount) {
+            final int runCount = mRunCount - (to - from) + newRunCount;
+            if (runCount > mStarts.length) {
+                final int capacity = Math.max(runCount, mStarts.length * 2);
+                mStarts = Arrays.copyOf(mStarts, capacity);
+                mEnds = Arrays.copyOf(mEnds, capacity);
+            }
+
+            final int tailCount = mRunCount - to;
+            System.arraycopy(mStarts, to, mStarts, from + newRunCount, tailCount);
+            System.arraycopy(mEnds, to, mEnds, from + newRunCount, tailCount);
+
+            if (newRunCount > 0) {
+                mStarts[from] = start1;
+                mEnds[from] = end1;
+            }
+
+            if (newRunCount > 1) {
+                mStarts[from + 1] = start2;
+                mEnds[from + 1] = end2;
+            }
+
+            mRunCount = runCount;
+        }
+
+        /**
+         * Returns the index of the first run ending at or after the value.
+         */
+        private int lowerBoundEnd(int value) {
+            int low = 0;
+            int high = mRunCount;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mEnds[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Returns the index of the first run starting after the value.
+         */
+        private int upperBoundStart(int value) {
+            int low = 0;
+            int high = mRunCount;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mStarts[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low;
+        }
+
+        private void appendRun(int start, int end) {
+            replaceRuns(mRunCount, mRunCount, start, end, 0, 0, 1);
+            mCount += end - start;
+        }
+
+        /**
+         * Encodes the runs for the saved state, in whichever format is
+         * smaller.
+         */
+        byte[] toByteArray() {
+            int runBytes = StateWriter.getVarintSize(mRunCount);
+            int end = 0;
+            for (int i = 0; i < mRunCount; i++) {
+                runBytes += StateWriter.getVarintSize(mStarts[i] - end);
+                runBytes += StateWriter.getVarintSize(mEnds[i] - mStarts[i]);
+                end = mEnds[i];
+            }
+
+            final int origin = (mRunCount > 0 ? mStarts[0] : 0);
+            final int bitCount = (mRunCount > 0 ? mEnds[mRunCount - 1] - origin : 0);
+            final int bitmapBytes = StateWriter.getVarintSize(origin)
+                    + StateWriter.getVarintSize(bitCount) + (bitCount + 7) / 8;
+
+            if (bitmapBytes < runBytes) {
+                final StateWriter out = new StateWriter(1 + bitmapBytes);
+                out.writeByte(FORMAT_BITMAP);
+                out.writeVarint(origin);
+                out.writeVarint(bitCount);
+                out.writeBitmap(mStarts, mEnds, mRunCount, origin, bitCount);
+                return out.toByteArray();
+            }
+
+            final StateWriter out = new StateWriter(1 + runBytes);
+            out.writeByte(FORMAT_RUNS);
+            out.writeVarint(mRunCount);
+
+            end = 0;
+            for (int i = 0; i < mRunCount; i++) {
+                out.writeVarint(mStarts[i] - end);
+                out.writeVarint(mEnds[i] - mStarts[i]);
+                end = mEnds[i];
+            }
+
+            return out.toByteArray();
+        }
     }
 
-    private static class CheckedIdStates extends LongSparseArray<Integer> implements Parcelable {
+    /**
+     * Map from the ids of the checked items to their positions, stored as
+     * runs sorted by id where consecutive ids sit at consecutive positions.
+     * Adapters handing out sequential ids, e.g. database row ids, end up
+     * with very few runs. Any other id takes a run of its own.
+     */
+    static class CheckedIdStates {
+        private long[] mFirstIds;
+        private int[] mFirstPositions;
+        private int[] mLengths;
+        private int mRunCount;
+        private int mSize;
+
         public CheckedIdStates() {
-            super();
+            mFirstIds = new long[4];
+            mFirstPositions = new int[4];
+            mLengths = new int[4];
+        }
+
+        /**
+         * Restores the runs written by {@link #toByteArray()}.
+         */
+        CheckedIdStates(byte[] bytes) {
+            final StateReader in = new StateReader(bytes);
+            final int runCount = (int) in.readVarint();
+            final int capacity = Math.max(4, runCount);
+            mFirstIds = new long[capacity];
+            mFirstPositions = new int[capacity];
+            mLengths = new int[capacity];
+
+            long id = 0;
+            int position = 0;
+            for (int i = 0; i < runCount; i++) {
+                id += in.readSignedVarint();
+                position += (int) in.readSignedVarint();
+
+                mFirstIds[i] = id;
+                mFirstPositions[i] = position;
+                mLengths[i] = (int) in.readVarint();
+                mSize += mLengths[i];
+            }
+
+            mRunCount = runCount;
+        }
+
+        /**
+         * Returns the number of checked ids.
+         */
+        public int size() {
+            return mSize;
+        }
+
+        public int getRunCount() {
+            return mRunCount;
+        }
+
+        public long getRunFirstId(int run) {
+            return mFirstIds[run];
+        }
+
+        public int getRunFirstPosition(int run) {
+            return mFirstPositions[run];
+        }
+
+        public int getRunLength(int run) {
+            return mLengths[run];
+        }
+
+        public void clear() {
+            mRunCount = 0;
+            mSize = 0;
         }
 
-        private CheckedIdStates(Parcel in) {
-            final int size = in.readInt();
-            if (size > 0) {
-                for (int i = 0; i < size; i++) {
-                    final long key = in.readLong();
-                    final int value = in.readInt();
-                    put(key, value);
+        public void put(long id, int position) {
+            int run = findRun(id);
+            if (containsId(run, id)) {
+                final int offset = (int) (id - mFirstIds[run]);
+                if (mFirstPositions[run] + offset == position) {
+                    return;
                 }
+
+                removeAt(run, offset);
+                run = findRun(id);
+            }
+
+            final int next = run + 1;
+            final boolean extendsPrevious = (run >= 0
+                    && mFirstIds[run] + mLengths[run] == id
+                    && mFirstPositions[run] + mLengths[run] == position);
+            final boolean extendsNext = (next < mRunCount
+                    && mFirstIds[next] - 1 == id
+                    && mFirstPositions[next] - 1 == position);
+
+            if (extendsPrevious && extendsNext) {
+                mLengths[run] += 1 + mLengths[next];
+                removeRuns(next, 1);
+            } else if (extendsPrevious) {
+                mLengths[run]++;
+            } else if (extendsNext) {
+                mFirstIds[next] = id;
+                mFirstPositions[next] = position;
+                mLengths[next]++;
+            } else {
+                insertRun(next, id, position, 1);
             }
+
+            mSize++;
         }
 
-        @Override
-        public int describeContents() {
-            return 0;
+        public void delete(long id) {
+            final int run = findRun(id);
+            if (containsId(run, id)) {
+                removeAt(run, (int) (id - mFirstIds[run]));
+            }
         }
 
-        @Override
-        public void writeToParcel(Parcel parcel, int flags) {
-            final int size = size();
-            parcel.writeInt(size);
+        /**
+         * Puts the given ids at the given positions in a single pass over
+         * the runs. The arrays are sorted in place.
+         */
+        public void putAll(long[] ids, int[] positions, int count) {
+            sortByIds(ids, positions, count);
+
+            // Keep the last position given for any repeated id.
+            int uniqueCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (uniqueCount > 0 && ids[uniqueCount - 1] == ids[i]) {
+                    positions[uniqueCount - 1] = positions[i];
+                } else {
+                    ids[uniqueCount] = ids[i];
+                    positions[uniqueCount] = positions[i];
+                    uniqueCount++;
+                }
+            }
+
+            merge(ids, positions, uniqueCount, true);
+        }
 
-            for (int i = 0; i < size; i++) {
-                parcel.writeLong(keyAt(i));
-                parcel.writeInt(valueAt(i));
+        /**
+         * Deletes the given ids in a single pass over the runs. The array is
+         * sorted in place.
+         */
+        public void deleteAll(long[] ids, int count) {
+            Arrays.sort(ids, 0, count);
+            merge(ids, null, count, false);
+        }
+
+        /**
+         * Rebuilds the runs with the given sorted ids either put at their
+         * positions or deleted.
+         */
+        private void merge(long[] ids, int[] positions, int count, boolean put) {
+            if (count == 0) {
+                return;
             }
+
+            final long[] oldFirstIds = mFirstIds;
+            final int[] oldFirstPositions = mFirstPositions;
+            final int[] oldLengths = mLengths;
+            final int oldRunCount = mRunCount;
+
+            // Every id can at most split a run in three.
+            final int capacity = Math.max(4, oldRunCount + 2 * count);
+            mFirstIds = new long[capacity];
+            mFirstPositions = new int[capacity];
+            mLengths = new int[capacity];
+            mRunCount = 0;
+            mSize = 0;
+
+            int index = 0;
+            for (int run = 0; run < oldRunCount; run++) {
+                long id = oldFirstIds[run];
+                int position = oldFirstPositions[run];
+                final long end = id + oldLengths[run];
+
+                while (id < end) {
+                    while (index < count && ids[index] < id) {
+                        if (put) {
+                            appendRun(ids[index], positions[index], 1);
+                        }
+                        index++;
+                    }
+
+                    if (index < count && ids[index] < end) {
+                        // Keep the part of the run before the id and replace
+                        // or drop the id itself.
+                        final int length = (int) (ids[index] - id);
+                        appendRun(id, position, length);
+                        if (put) {
+                            appendRun(ids[index], positions[index], 1);
+                        }
+                        index++;
+
+                        id += length + 1;
+                        position += length + 1;
+                    } else {
+                        appendRun(id, position, (int) (end - id));
+                        id = end;
+                    }
+                }
+            }
+
+            for (; put && index < count; index++) {
+                appendRun(ids[index], positions[index], 1);
+            }
+        }
+
+        /**
+         * Appends a run after the last one, joining them if they're
+         * consecutive.
+         */
+        private void appendRun(long firstId, int firstPosition, int length) {
+            if (length == 0) {
+                return;
+            }
+
+            final int last = mRunCount - 1;
+            if (last >= 0 && mFirstIds[last] + mLengths[last] == firstId
+                    && mFirstPositions[last] + mLengths[last] == firstPosition) {
+                mLengths[last] += length;
+            } else {
+                mFirstIds[mRunCount] = firstId;
+                mFirstPositions[mRunCount] = firstPosition;
+                mLengths[mRunCount] = length;
+                mRunCount++;
+            }
+
+            mSize += length;
         }
 
-        public static final Creator<CheckedIdStates> CREATOR
-                = new Creator<CheckedIdStates>() {
-            @Override
-            public CheckedIdStates createFromParcel(Parcel in) {
-                return new CheckedIdStates(in);
+        /**
+         * Sorts the ids along with their positions, keeping the order of
+         * equal ids. Ids are usually handed out in order, so sorted input
+         * is checked for first.
+         */
+        private static void sortByIds(long[] ids, int[] positions, int count) {
+            boolean sorted = true;
+            for (int i = 1; i < count && sorted; i++) {
+                sorted = (ids[i - 1] <= ids[i]);
             }
 
-            @Override
-            public CheckedIdStates[] newArray(int size) {
-                return new CheckedIdStates[size];
+            if (sorted) {
+                return;
             }
-        };
+
+            long[] fromIds = ids;
+            int[] fromPositions = positions;
+            long[] toIds = new long[count];
+            int[] toPositions = new int[count];
+
+            // Bottom-up merge sort over both arrays.
+            for (int width = 1; width < count; width *= 2) {
+                for (int low = 0; low < count; low += 2 * width) {
+                    final int mid = Math.min(low + width, count);
+                    final int high = Math.min(low + 2 * width, count);
+
+                    int i = low;
+                    int j = mid;
+                    for (int k = low; k < high; k++) {
+                        if (i < mid && (j >= high || fromIds[i] <= fromIds[j])) {
+                            toIds[k] = fromIds[i];
+                            toPositions[k] = fromPositions[i];
+                            i++;
+                        } else {
+                            toIds[k] = fromIds[j];
+                            toPositions[k] = fromPositions[j];
+                            j++;
+                        }
+                    }
+                }
+
+                final long[] swapIds = fromIds;
+                fromIds = toIds;
+                toIds = swapIds;
+
+                final int[] swapPositions = fromPositions;
+                fromPositions = toPositions;
+                toPositions = swapPositions;
+            }
+
+            if (fromIds != ids) {
+                System.arraycopy(fromIds, 0, ids, 0, count);
+                System.arraycopy(fromPositions, 0, positions, 0, count);
+            }
+        }
+
+        /**
+         * Shifts the positions of the ids for items inserted at the given
+         * position. The runs are sorted by id rather than position, so this
+         * visits every run: O(runs), i.e. O(checked items) when the checked
+         * ids are scattered.
+         */
+        public void offsetForAddition(int positionStart, int itemCount) {
+            for (int run = 0; run < mRunCount; run++) {
+                final int firstPosition = mFirstPositions[run];
+                final int length = mLengths[run];
+
+                if (firstPosition >= positionStart) {
+                    mFirstPositions[run] += itemCount;
+                } else if (firstPosition + length > positionStart) {
+                    // Split the run around the insertion point. Only one
+                    // run can cover it.
+                    final int offset = positionStart - firstPosition;
+                    insertRun(run + 1, mFirstIds[run] + offset, positionStart + itemCount,
+                            length - offset);
+                    mLengths[run] = offset;
+                    run++;
+                }
+            }
+        }
+
+        /**
+         * Drops the ids of the removed items and shifts the positions of the
+         * ones after them, merging runs that become contiguous. Like
+         * {@link #offsetForAddition(int, int)} this is a single pass over
+         * all the runs, O(runs).
+         */
+        public void offsetForRemoval(int positionStart, int itemCount) {
+            final int end = positionStart + itemCount;
+
+            // A run covering the whole removed range splits in two, its tail
+            // is inserted after the pass.
+            int splitRun = -1;
+            long splitFirstId = 0;
+            int splitLength = 0;
+
+            int count = 0;
+            for (int run = 0; run < mRunCount; run++) {
+                long firstId = mFirstIds[run];
+                int firstPosition = mFirstPositions[run];
+                int length = mLengths[run];
+                final int lastPosition = firstPosition + length;
+
+                if (firstPosition >= end) {
+                    firstPosition -= itemCount;
+                } else if (lastPosition > positionStart) {
+                    // The run overlaps the removed range, keep what's left
+                    // before and after it.
+                    final int headLength = Math.max(0, positionStart - firstPosition);
+                    final int tailLength = Math.max(0, lastPosition - end);
+                    final long tailFirstId = firstId + (length - tailLength);
+
+                    mSize -= length - headLength - tailLength;
+
+                    if (headLength > 0) {
+                        length = headLength;
+                        if (tailLength > 0) {
+                            splitRun = count + 1;
+                            splitFirstId = tailFirstId;
+                            splitLength = tailLength;
+                        }
+                    } else if (tailLength > 0) {
+                        firstId = tailFirstId;
+                        firstPosition = positionStart;
+                        length = tailLength;
+                    } else {
+                        continue;
+                    }
+                }
+
+                final int previous = count - 1;
+                if (previous >= 0 && splitRun != count
+                        && mFirstIds[previous] + mLengths[previous] == firstId
+                        && mFirstPositions[previous] + mLengths[previous] == firstPosition) {
+                    mLengths[previous] += length;
+                } else {
+                    mFirstIds[count] = firstId;
+                    mFirstPositions[count] = firstPosition;
+                    mLengths[count] = length;
+                    count++;
+                }
+            }
+
+            mRunCount = count;
+
+            if (splitRun >= 0) {
+                insertRun(splitRun, splitFirstId, positionStart, splitLength);
+            }
+        }
+
+        /**
+         * Moves the id at the given position, if checked, and shifts the
+         * ones in between. This takes a few passes over all the runs, so
+         * moving n items costs O(n * runs).
+         */
+        public void move(int from, int to) {
+            long movedId = 0;
+            boolean found = false;
+
+            for (int run = 0; run < mRunCount; run++) {
+                final int offset = from - mFirstPositions[run];
+                if (offset >= 0 && offset < mLengths[run]) {
+                    movedId = mFirstIds[run] + offset;
+                    found = true;
+                    break;
+                }
+            }
+
+            offsetForRemoval(from, 1);
+            offsetForAddition(to, 1);
+
+            if (found) {
+                put(movedId, to);
+            }
+        }
+
+        private boolean containsId(int run, long id) {
+            return (run >= 0 && id <= mFirstIds[run] + (mLengths[run] - 1));
+        }
+
+        private void removeAt(int run, int offset) {
+            final int length = mLengths[run];
+            if (length == 1) {
+                removeRuns(run, 1);
+            } else if (offset == 0) {
+                mFirstIds[run]++;
+                mFirstPositions[run]++;
+                mLengths[run]--;
+            } else if (offset == length - 1) {
+                mLengths[run]--;
+            } else {
+                // Split the run around the removed id.
+                insertRun(run + 1, mFirstIds[run] + offset + 1,
+                        mFirstPositions[run] + offset + 1, length - offset - 1);
+                mLengths[run] = offset;
+            }
+
+            mSize--;
+        }
+
+        private void insertRun(int run, long firstId, int firstPosition, int length) {
+            if (mRunCount == mFirstIds.length) {
+                final int capacity = mRunCount * 2;
+                mFirstIds = Arrays.copyOf(mFirstIds, capacity);
+                mFirstPositions = Arrays.copyOf(mFirstPositions, capacity);
+                mLengths = Arrays.copyOf(mLengths, capacity);
+            }
+
+            final int tailCount = mRunCount - run;
+            System.arraycopy(mFirstIds, run, mFirstIds, run + 1, tailCount);
+            System.arraycopy(mFirstPositions, run, mFirstPositions, run + 1, tailCount);
+            System.arraycopy(mLengths, run, mLengths, run + 1, tailCount);
+
+            mFirstIds[run] = firstId;
+            mFirstPositions[run] = firstPosition;
+            mLengths[run] = length;
+            mRunCount++;
+        }
+
+        private void removeRuns(int run, int count) {
+            final int tailCount = mRunCount - run - count;
+            System.arraycopy(mFirstIds, run + count, mFirstIds, run, tailCount);
+            System.arraycopy(mFirstPositions, run + count, mFirstPositions, run, tailCount);
+            System.arraycopy(mLengths, run + count, mLengths, run, tailCount);
+            mRunCount -= count;
+        }
+
+        /**
+         * Returns the index of the last run whose first id is equal to or
+         * lower than the given id, or -1 if there's none.
+         */
+        private int findRun(long id) {
+            int low = 0;
+            int high = mRunCount;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mFirstIds[mid] <= id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            return low - 1;
+        }
+
+        /**
+         * Encodes the runs for the saved state, as varint deltas from the
+         * previous run.
+         */
+        byte[] toByteArray() {
+            final StateWriter out = new StateWriter(4 + mRunCount * 4);
+            out.writeVarint(mRunCount);
+
+            long id = 0;
+            int position = 0;
+            for (int i = 0; i < mRunCount; i++) {
+                out.writeSignedVarint(mFirstIds[i] - id);
+                out.writeSignedVarint(mFirstPositions[i] - position);
+                out.writeVarint(mLengths[i]);
+
+                id = mFirstIds[i];
+                position = mFirstPositions[i];
+            }
+
+            return out.toByteArray();
+        }
+
+        /**
+         * Checks the positions of all the checked ids in the given states.
+         */
+        void getPositions(CheckedStates states) {
+            // Sort the runs by position so that they're appended in order.
+            final long[] runs = new long[mRunCount];
+            for (int i = 0; i < mRunCount; i++) {
+                runs[i] = ((long) mFirstPositions[i] << 32) | mLengths[i];
+            }
+            Arrays.sort(runs);
+
+            for (int i = 0; i < mRunCount; i++) {
+                final int start = (int) (runs[i] >>> 32);
+                states.put(start, start + (int) runs[i], true);
+            }
+        }
+    }
+
+    /**
+     * Growable byte buffer for the saved checked states.
+     */
+    private static class StateWriter {
+        private byte[] mBytes;
+        private int mSize;
+
+        StateWriter(int capacity) {
+            mBytes = new byte[capacity];
+        }
+
+        static int getVarintSize(long value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) {
+                size++;
+            }
+
+            return size;
+        }
+
+        void writeByte(int value) {
+            if (mSize == mBytes.length) {
+                mBytes = Arrays.copyOf(mBytes, mBytes.length * 2);
+            }
+
+            mBytes[mSize++] = (byte) value;
+        }
+
+        /**
+         * Writes an unsigned value 7 bits at a time, low bits first.
+         */
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            writeByte((int) value);
+        }
+
+        /**
+         * Writes a signed value zigzag encoded, so that small negative
+         * values stay short.
+         */
+        void writeSignedVarint(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes the runs as one bit per position in [origin, origin +
+         * bitCount), low bits first.
+         */
+        void writeBitmap(int[] starts, int[] ends, int runCount, int origin, int bitCount) {
+            final int offset = mSize;
+            final int byteCount = (bitCount + 7) / 8;
+            for (int i = 0; i < byteCount; i++) {
+                writeByte(0);
+            }
+
+            for (int run = 0; run < runCount; run++) {
+                for (int bit = starts[run] - origin; bit < ends[run] - origin; bit++) {
+                    mBytes[offset + (bit >>> 3)] |= (byte) (1 << (bit & 7));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBytes, mSize);
+        }
+    }
+
+    private static class StateReader {
+        private final byte[] mBytes;
+        private int mOffset;
+        private int mLastByte;
+
+        StateReader(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        int readByte() {
+            mLastByte = mBytes[mOffset++] & 0xFF;
+            return mLastByte;
+        }
+
+        /**
+         * Returns the given bit of the last byte read.
+         */
+        boolean getBit(int bit) {
+            return (mLastByte & (1 << bit)) != 0;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        long readSignedVarint() {
+            final long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
     }
 
     private class TouchListener extends ClickItemTouchListener {
@@ -479,7 +1691,7 @@ public class ItemSelectionSupport {
             boolean checkedStateChanged = false;
 
             if (mChoiceMode == ChoiceMode.MULTIPLE) {
-                boolean checked = !mCheckedStates.get(position, false);
+                boolean checked = !mCheckedStates.get(position);
                 mCheckedStates.put(position, checked);
 
                 if (mCheckedIdStates != null && adapter.hasStableIds()) {
@@ -498,7 +1710,7 @@ public class ItemSelectionSupport {
 
                 checkedStateChanged = true;
             } else if (mChoiceMode == ChoiceMode.SINGLE) {
-                boolean checked = !mCheckedStates.get(position, false);
+                boolean checked = !mCheckedStates.get(position);
                 if (checked) {
                     mCheckedStates.clear();
                     mCheckedStates.put(position, true);
@@ -509,7 +1721,7 @@ public class ItemSelectionSupport {
                     }
 
                     mCheckedCount = 1;
-                } else if (mCheckedStates.size() == 0 || !mCheckedStates.valueAt(0)) {
+                } else if (mCheckedStates.getCount() == 0) {
                     mCheckedCount = 0;
                 }
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import java.util.Arrays;
+
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_END;
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_START;
+
+/**
+ * Scrap list indices sorted by layout position, see
+ * {@link TwoWayLayoutManager#onLayoutScrapList}.
+ *
+ * The scrap list is sorted once per layout pass, keeping the list order
+ * for holders at the same position, so that looking up the closest holder
+ * for each laid out position is a binary search instead of a scan of the
+ * whole list.
+ */
+class ScrapIndex {
+    public static final int NO_INDEX = -1;
+
+    // Each key holds the layout position in the high bits and the index in
+    // the scrap list in the low bits.
+    private long[] mKeys = new long[0];
+    private int mCount;
+
+    /**
+     * Starts a new index for the given number of holders.
+     */
+    void reset(int count) {
+        if (mKeys.length < count) {
+            mKeys = new long[Math.max(count, mKeys.length * 2)];
+        }
+
+        mCount = count;
+    }
+
+    /**
+     * Sets the layout position of the holder at the given scrap list index.
+     */
+    void setPosition(int index, int position) {
+        mKeys[index] = ((long) position << 32) | index;
+    }
+
+    /**
+     * Sorts the holders by position, call it after setting all positions.
+     */
+    void sort() {
+        Arrays.sort(mKeys, 0, mCount);
+    }
+
+    /**
+     * Returns the index of the first sorted holder at or after the given
+     * position.
+     */
+    private int lowerBound(int position) {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if ((int) (mKeys[mid] >> 32) < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Returns the scrap list index of the holder closest to the given
+     * position in the given direction, picking the first one in the scrap
+     * list in case of a tie, or {@link #NO_INDEX} if there's none.
+     */
+    int findNext(int direction, int position) {
+        int index = lowerBound(direction == DIRECTION_END ? position : position + 1);
+
+        if (direction == DIRECTION_START) {
+            if (index == 0) {
+                return NO_INDEX;
+            }
+
+            // Go to the first holder at the closest position before.
+            index = lowerBound((int) (mKeys[index - 1] >> 32));
+        } else if (index == mCount) {
+            return NO_INDEX;
+        }
+
+        return (int) mKeys[index];
+    }
+}
@@ -27,6 +27,7 @@ import android.support.v7.widget.OrientationHelper;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.Adapter;
 import android.support.v7.widget.RecyclerView.LayoutManager;
+import android.support.v7.widget.RecyclerView.LayoutManager.LayoutPrefetchRegistry;
 import android.support.v7.widget.RecyclerView.LayoutParams;
 import android.support.v7.widget.RecyclerView.Recycler;
 import android.support.v7.widget.RecyclerView.State;
@@ -43,6 +44,14 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
     public static final int DIRECTION_START = 0;
     public static final int DIRECTION_END = 1;
 
+    public static final int ITEM_PREFETCH_DEPTH_DEFAULT = -1;
+
+    /**
+     * Returned by {@link #getLayoutEdge(int)} when the edge has to be
+     * found from the attached children.
+     */
+    protected static final int NO_LAYOUT_EDGE = Integer.MIN_VALUE;
+
     private OrientationHelper mPrimaryOrientation;
     private OrientationHelper mSecondaryOrientation;
 
@@ -51,6 +60,10 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
     private RecyclerView mRecyclerView;
 
+    // RecyclerView keeps a single Recycler for its whole lifetime, this is
+    // the one handed to the last scroll or layout. See onScrollStateChanged().
+    private Recycler mRecycler;
+
     private boolean mIsVertical = true;
 
     private SavedState mPendingSavedState = null;
@@ -61,6 +74,104 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
     private int mLayoutStart;
     private int mLayoutEnd;
 
+    private final ScrapIndex mScrapIndex = new ScrapIndex();
+
+    private long mFillBudgetNanos;
+    private long mFillDeadline;
+    private boolean mHasDeferredFill;
+    private OnFillDeferredListener mOnFillDeferredListener;
+
+    private ExtraLayoutSpacePolicy mExtraLayoutSpacePolicy = new DefaultExtraLayoutSpacePolicy();
+    private float mScrollVelocity;
+    private long mLastScrollNanos;
+    private long mAverageBindNanos;
+
+    private int mItemPrefetchDepth = ITEM_PREFETCH_DEPTH_DEFAULT;
+    private int mPrefetchFirstPosition = RecyclerView.NO_POSITION;
+    private int mPrefetchLastPosition = RecyclerView.NO_POSITION;
+    private int mPrefetchRangeHitCount;
+    private int mPrefetchRangeMissCount;
+
+    private final ChildFrameIndex mChildFrameIndex = new ChildFrameIndex();
+
+    /**
+     * Decides how much space, beyond the visible area, should be laid out
+     * ahead of the current scroll direction. See
+     * {@link #setExtraLayoutSpacePolicy(ExtraLayoutSpacePolicy)}.
+     */
+    public interface ExtraLayoutSpacePolicy {
+        /**
+         * @param layoutManager The layout manager being filled. Use
+         *        {@link #getScrollVelocity()} and {@link #getAverageBindTime()}
+         *        to adapt to the current scroll.
+         * @param state The current RecyclerView state.
+         * @param totalSpace The size of the visible area along the scrolling
+         *        direction, without padding.
+         * @return The extra space, in pixels, to lay out off-screen.
+         */
+        int getExtraLayoutSpace(TwoWayLayoutManager layoutManager, State state, int totalSpace);
+    }
+
+    /**
+     * Lays out a whole screen ahead when scrolling to a target position.
+     * Otherwise, lays out as far ahead as the list travels, at the current
+     * scroll velocity, during the next couple of frames plus the time it
+     * takes to bind an item, up to the given number of screens. Nothing is
+     * laid out off-screen while the list is idle.
+     */
+    public static class DefaultExtraLayoutSpacePolicy implements ExtraLayoutSpacePolicy {
+        private static final long FRAME_NANOS = 16666667L;
+        private static final int LOOKAHEAD_FRAMES = 2;
+
+        private final float mMaxScreens;
+
+        public DefaultExtraLayoutSpacePolicy() {
+            this(1f);
+        }
+
+        public DefaultExtraLayoutSpacePolicy(float maxScreens) {
+            if (maxScreens < 0) {
+                throw new IllegalArgumentException("Max screens must not be negative");
+            }
+
+            mMaxScreens = maxScreens;
+        }
+
+        @Override
+        public int getExtraLayoutSpace(TwoWayLayoutManager layoutManager, State state,
+                                       int totalSpace) {
+            if (state.hasTargetScrollPosition()) {
+                return totalSpace;
+            }
+
+            final float velocity = layoutManager.getScrollVelocity();
+            if (velocity <= 0) {
+                return 0;
+            }
+
+            final long lookaheadNanos =
+                    LOOKAHEAD_FRAMES * FRAME_NANOS + layoutManager.getAverageBindTime();
+            final float extraSpace = velocity * lookaheadNanos / 1000000000f;
+
+            return (int) Math.min(extraSpace, totalSpace * mMaxScreens);
+        }
+    }
+
+    /**
+     * Interface definition for a callback to be invoked when part of the
+     * off-screen fill is deferred to a later frame because the fill budget
+     * set with {@link #setFillBudget(long)} ran out.
+     */
+    public interface OnFillDeferredListener {
+        /**
+         * @param layoutManager The layout manager deferring the fill.
+         * @param direction The direction being filled, {@link #DIRECTION_START}
+         *        or {@link #DIRECTION_END}.
+         * @param position The adapter position of the first item not laid out.
+         */
+        void onFillDeferred(TwoWayLayoutManager layoutManager, int direction, int position);
+    }
+
     public TwoWayLayoutManager(Context context, int orientation) {
         this(context, orientation, 1.0f);
     }
@@ -70,6 +181,13 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         mAspectRatio = aspectRatio;
     }
 
+    /**
+     * Creates a layout manager from the attributes declared on its
+     * {@link RecyclerView} in XML. Like the other constructors, this only
+     * reads the given attributes and touches no shared state, so it can
+     * run on a background thread, e.g. while a layout is being inflated
+     * ahead of time. Subclasses are expected to keep it that way.
+     */
     public TwoWayLayoutManager(Context context, AttributeSet attrs) {
         final TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.twowayview_TwoWayLayoutManager, 0, 0);
 
@@ -127,6 +245,43 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         return (mRecyclerView != null ? mRecyclerView.getAdapter() : null);
     }
 
+    private void resetChildFrameIndex() {
+        final int laneCount = Math.max(1, getHitTestLaneCount());
+        final int laneOrigin = (mIsVertical ? getPaddingLeft() : getPaddingTop());
+        final int laneSpace = (mIsVertical ?
+                getWidth() - getPaddingLeft() - getPaddingRight() :
+                getHeight() - getPaddingTop() - getPaddingBottom());
+
+        mChildFrameIndex.reset(laneCount, laneOrigin, laneSpace / laneCount);
+    }
+
+    private void rebuildChildFrameIndex() {
+        resetChildFrameIndex();
+
+        final int childCount = getChildCount();
+        for (int i = 0; i < childCount; i++) {
+            addToChildFrameIndex(getChildAt(i));
+        }
+    }
+
+    private void addToChildFrameIndex(View child) {
+        if (mIsVertical) {
+            mChildFrameIndex.add(child, child.getTop(), child.getBottom(),
+                    child.getLeft(), child.getRight());
+        } else {
+            mChildFrameIndex.add(child, child.getLeft(), child.getRight(),
+                    child.getTop(), child.getBottom());
+        }
+    }
+
+    private void removeFromChildFrameIndex(View child) {
+        if (mIsVertical) {
+            mChildFrameIndex.remove(child, child.getTop(), child.getLeft(), child.getRight());
+        } else {
+            mChildFrameIndex.remove(child, child.getLeft(), child.getTop(), child.getBottom());
+        }
+    }
+
     private void offsetChildren(int offset) {
         if (mIsVertical) {
             offsetChildrenVertical(offset);
@@ -151,6 +306,8 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         final int childrenStart = getStartWithoutPadding();
 
         int detachedCount = 0;
+        int detachedStart = Integer.MAX_VALUE;
+        int detachedEnd = Integer.MIN_VALUE;
         for (int i = 0; i < childCount; i++) {
             final View child = getChildAt(i);
             final int childEnd = getChildEnd(child);
@@ -160,15 +317,22 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
             }
 
             detachedCount++;
+            detachedStart = Math.min(detachedStart, getChildStart(child));
+            detachedEnd = Math.max(detachedEnd, childEnd);
 
+            removeFromChildFrameIndex(child);
             detachChild(child, direction);
         }
 
+        if (detachedCount == 0) {
+            return;
+        }
+
         while (--detachedCount >= 0) {
-            final View child = getChildAt(0);
-            removeAndRecycleView(child, recycler);
-            updateLayoutEdgesFromRemovedChild(child, direction);
+            removeAndRecycleViewAt(0, recycler);
         }
+
+        updateLayoutEdgesFromRemovedChildren(detachedStart, detachedEnd, direction);
     }
 
     private void recycleChildrenFromEnd(int direction, Recycler recycler) {
@@ -177,6 +341,8 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
         int firstDetachedPos = 0;
         int detachedCount = 0;
+        int detachedStart = Integer.MAX_VALUE;
+        int detachedEnd = Integer.MIN_VALUE;
         for (int i = childCount - 1; i >= 0; i--) {
             final View child = getChildAt(i);
             final int childStart = getChildStart(child);
@@ -187,23 +353,35 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
             firstDetachedPos = i;
             detachedCount++;
+            detachedStart = Math.min(detachedStart, childStart);
+            detachedEnd = Math.max(detachedEnd, getChildEnd(child));
 
+            removeFromChildFrameIndex(child);
             detachChild(child, direction);
         }
 
+        if (detachedCount == 0) {
+            return;
+        }
+
         while (--detachedCount >= 0) {
-            final View child = getChildAt(firstDetachedPos);
             removeAndRecycleViewAt(firstDetachedPos, recycler);
-            updateLayoutEdgesFromRemovedChild(child, direction);
         }
+
+        updateLayoutEdgesFromRemovedChildren(detachedStart, detachedEnd, direction);
     }
 
     private int scrollBy(int delta, Recycler recycler, State state) {
+        mRecycler = recycler;
+
         final int childCount = getChildCount();
         if (childCount == 0 || delta == 0) {
             return 0;
         }
 
+        final long now = System.nanoTime();
+        mFillDeadline = (mFillBudgetNanos > 0 ? now + mFillBudgetNanos : 0);
+
         final int start = getStartWithoutPadding();
         final int end = getEndWithoutPadding();
         final int firstPosition = getFirstVisiblePosition();
@@ -226,42 +404,94 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
             return 0;
         }
 
+        updateScrollVelocity(delta, now);
+
         offsetChildren(-delta);
 
         final int direction = (delta > 0 ? DIRECTION_END : DIRECTION_START);
         recycleChildrenOutOfBounds(direction, recycler);
 
         final int absDelta = Math.abs(delta);
-        if (canAddMoreViews(DIRECTION_START, start - absDelta) ||
+        if (mHasDeferredFill ||
+                canAddMoreViews(DIRECTION_START, start - absDelta) ||
                 canAddMoreViews(DIRECTION_END, end + absDelta)) {
             fillGap(direction, recycler, state);
         }
 
+        mFillDeadline = 0;
+
         return delta;
     }
 
+    private void updateScrollVelocity(int delta, long now) {
+        // Scroll steps further apart than this belong to separate scrolls.
+        final long maxElapsedNanos = 100000000L;
+
+        final long elapsed = now - mLastScrollNanos;
+        mLastScrollNanos = now;
+
+        if (elapsed <= 0 || elapsed > maxElapsedNanos) {
+            mScrollVelocity = 0;
+            return;
+        }
+
+        final float velocity = Math.abs(delta) * 1000000000f / elapsed;
+        mScrollVelocity = (mScrollVelocity == 0 ? velocity : (mScrollVelocity + velocity) / 2);
+    }
+
     private void fillGap(int direction, Recycler recycler, State state) {
         final int childCount = getChildCount();
         final int extraSpace = getExtraLayoutSpace(state);
         final int firstPosition = getFirstVisiblePosition();
 
+        mHasDeferredFill = false;
+
         if (direction == DIRECTION_END) {
             fillAfter(firstPosition + childCount, recycler, state, extraSpace);
+            countPrefetchRangeHits(firstPosition + childCount, getLastVisiblePosition());
             correctTooHigh(childCount, recycler, state);
         } else {
             fillBefore(firstPosition - 1, recycler, extraSpace);
+            countPrefetchRangeHits(getFirstVisiblePosition(), firstPosition - 1);
             correctTooLow(childCount, recycler, state);
         }
     }
 
+    /**
+     * Counts the positions brought in by a scroll fill that were, or were
+     * not, in the last range handed out for prefetching. Whether the view
+     * was actually prefetched, and taken from the cache, is not known here.
+     */
+    private void countPrefetchRangeHits(int firstPosition, int lastPosition) {
+        if (lastPosition < firstPosition) {
+            return;
+        }
+
+        int hits = 0;
+        if (mPrefetchFirstPosition != RecyclerView.NO_POSITION) {
+            final int from = Math.max(firstPosition, mPrefetchFirstPosition);
+            final int to = Math.min(lastPosition, mPrefetchLastPosition);
+            hits = Math.max(0, to - from + 1);
+        }
+
+        mPrefetchRangeHitCount += hits;
+        mPrefetchRangeMissCount += (lastPosition - firstPosition + 1) - hits;
+    }
+
     private void fillBefore(int pos, Recycler recycler) {
         fillBefore(pos, recycler, 0);
     }
 
     private void fillBefore(int position, Recycler recycler, int extraSpace) {
-        final int limit = getStartWithoutPadding() - extraSpace;
+        final int visibleLimit = getStartWithoutPadding();
+        final int limit = visibleLimit - extraSpace;
 
         while (canAddMoreViews(DIRECTION_START, limit) && position >= 0) {
+            if (shouldDeferFill(DIRECTION_START, visibleLimit)) {
+                deferFill(DIRECTION_START, position);
+                break;
+            }
+
             makeAndAddView(position, DIRECTION_START, recycler);
             position--;
         }
@@ -272,15 +502,39 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
     }
 
     private void fillAfter(int position, Recycler recycler, State state, int extraSpace) {
-        final int limit = getEndWithoutPadding() + extraSpace;
+        final int visibleLimit = getEndWithoutPadding();
+        final int limit = visibleLimit + extraSpace;
 
         final int itemCount = state.getItemCount();
         while (canAddMoreViews(DIRECTION_END, limit) && position < itemCount) {
+            if (shouldDeferFill(DIRECTION_END, visibleLimit)) {
+                deferFill(DIRECTION_END, position);
+                break;
+            }
+
             makeAndAddView(position, DIRECTION_END, recycler);
             position++;
         }
     }
 
+    /**
+     * The visible gap is always filled. Only the extra off-screen space is
+     * subject to the fill budget of the current scroll.
+     */
+    private boolean shouldDeferFill(int direction, int visibleLimit) {
+        return (mFillDeadline > 0
+                && !canAddMoreViews(direction, visibleLimit)
+                && System.nanoTime() >= mFillDeadline);
+    }
+
+    private void deferFill(int direction, int position) {
+        mHasDeferredFill = true;
+
+        if (mOnFillDeferredListener != null) {
+            mOnFillDeferredListener.onFillDeferred(this, direction, position);
+        }
+    }
+
     private void fillSpecific(int position, Recycler recycler, State state) {
         if (state.getItemCount() == 0) {
             return;
@@ -409,40 +663,6 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         }
     }
 
-    private static View findNextScrapView(List<ViewHolder> scrapList, int direction,
-                                          int position) {
-        final int scrapCount = scrapList.size();
-
-        ViewHolder closest = null;
-        int closestDistance = Integer.MAX_VALUE;
-
-        for (int i = 0; i < scrapCount; i++) {
-            final ViewHolder holder = scrapList.get(i);
-
-            final int distance = holder.getLayoutPosition() - position;
-            if ((distance < 0 && direction == DIRECTION_END) ||
-                    (distance > 0 && direction == DIRECTION_START)) {
-                continue;
-            }
-
-            final int absDistance = Math.abs(distance);
-            if (absDistance < closestDistance) {
-                closest = holder;
-                closestDistance = absDistance;
-
-                if (distance == 0) {
-                    break;
-                }
-            }
-        }
-
-        if (closest != null) {
-            return closest.itemView;
-        }
-
-        return null;
-    }
-
     private void fillFromScrapList(List<ViewHolder> scrapList, int direction) {
         final int firstPosition = getFirstVisiblePosition();
 
@@ -453,9 +673,9 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
             position = firstPosition - 1;
         }
 
-        View scrapChild;
-        while ((scrapChild = findNextScrapView(scrapList, direction, position)) != null) {
-            setupChild(scrapChild, direction);
+        int index;
+        while ((index = mScrapIndex.findNext(direction, position)) != ScrapIndex.NO_INDEX) {
+            setupChild(scrapList.get(index).itemView, direction);
             position += (direction == DIRECTION_END ? 1 : -1);
         }
     }
@@ -472,7 +692,12 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
     }
 
     private View makeAndAddView(int position, int direction, Recycler recycler) {
+        final long start = System.nanoTime();
         final View child = recycler.getViewForPosition(position);
+
+        final long bindNanos = System.nanoTime() - start;
+        mAverageBindNanos = (mAverageBindNanos == 0 ? bindNanos :
+                (mAverageBindNanos * 7 + bindNanos) / 8);
         final boolean isItemRemoved = ((LayoutParams) child.getLayoutParams()).isItemRemoved();
 
         if (!isItemRemoved) {
@@ -483,6 +708,7 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
         if (!isItemRemoved) {
             updateLayoutEdgesFromNewChild(child);
+            addToChildFrameIndex(child);
         }
 
         return child;
@@ -513,20 +739,38 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         }
     }
 
-    private void updateLayoutEdgesFromRemovedChild(View removedChild, int direction) {
+    /**
+     * Updates the layout edges after a run of children spanning from
+     * removedChildStart to removedChildEnd was removed from the start
+     * (or end) of the layout. Only the children overlapping the removed
+     * run have to be checked.
+     */
+    private void updateLayoutEdgesFromRemovedChildren(int removedChildStart, int removedChildEnd,
+                                                      int direction) {
         final int childCount = getChildCount();
         if (childCount == 0) {
             resetLayoutEdges();
             return;
         }
 
-        final int removedChildStart = getChildStart(removedChild);
-        final int removedChildEnd = getChildEnd(removedChild);
-
         if (removedChildStart > mLayoutStart && removedChildEnd < mLayoutEnd) {
             return;
         }
 
+        // Scrolling towards the end of the layout removes children from
+        // the start, and the other way around.
+        final int edgeDirection = (direction == DIRECTION_END ? DIRECTION_START : DIRECTION_END);
+        final int edge = getLayoutEdge(edgeDirection);
+        if (edge != NO_LAYOUT_EDGE) {
+            if (edgeDirection == DIRECTION_START) {
+                mLayoutStart = edge;
+            } else {
+                mLayoutEnd = edge;
+            }
+
+            return;
+        }
+
         int index;
         final int limit;
         if (direction == DIRECTION_END) {
@@ -576,17 +820,90 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         }
     }
 
+    /**
+     * Returns the outermost edge of the laid out children towards the
+     * given direction, after children have been recycled from that side.
+     * Layouts tracking their own edges, e.g. per lane, can return them
+     * here to avoid walking the remaining children. Returns
+     * {@link #NO_LAYOUT_EDGE} by default.
+     *
+     * @param direction {@link #DIRECTION_START} or {@link #DIRECTION_END}.
+     */
+    protected int getLayoutEdge(int direction) {
+        return NO_LAYOUT_EDGE;
+    }
+
     private void resetLayoutEdges() {
         mLayoutStart = getStartWithPadding();
         mLayoutEnd = mLayoutStart;
     }
 
     protected int getExtraLayoutSpace(State state) {
-        if (state.hasTargetScrollPosition()) {
-            return getTotalSpace();
-        } else {
-            return 0;
+        return mExtraLayoutSpacePolicy.getExtraLayoutSpace(this, state, getTotalSpace());
+    }
+
+    /**
+     * Sets the policy deciding how much extra space is laid out off-screen,
+     * trading memory for smoother scrolling. Defaults to a
+     * {@link DefaultExtraLayoutSpacePolicy} of one screen.
+     */
+    public void setExtraLayoutSpacePolicy(ExtraLayoutSpacePolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("ExtraLayoutSpacePolicy must not be null");
         }
+
+        mExtraLayoutSpacePolicy = policy;
+    }
+
+    public ExtraLayoutSpacePolicy getExtraLayoutSpacePolicy() {
+        return mExtraLayoutSpacePolicy;
+    }
+
+    /**
+     * Returns the current scroll velocity in pixels per second along the
+     * scrolling direction, or 0 if the list is idle.
+     */
+    public float getScrollVelocity() {
+        return mScrollVelocity;
+    }
+
+    /**
+     * Returns the average time, in nanoseconds, taken to get a view for an
+     * item from the recycler, i.e. creating and/or binding it.
+     */
+    public long getAverageBindTime() {
+        return mAverageBindNanos;
+    }
+
+    @Override
+    public void onScrollStateChanged(int state) {
+        super.onScrollStateChanged(state);
+
+        if (state == RecyclerView.SCROLL_STATE_IDLE) {
+            mScrollVelocity = 0;
+            mLastScrollNanos = 0;
+
+            recycleExtraLayoutSpace();
+        }
+    }
+
+    /**
+     * Recycles the children laid out ahead of the scroll, beyond the
+     * visible area, once the list settles. Nothing is kept off-screen
+     * while idle, see {@link DefaultExtraLayoutSpacePolicy}.
+     */
+    private void recycleExtraLayoutSpace() {
+        if (mRecycler == null || mRecyclerView == null || getChildCount() == 0) {
+            return;
+        }
+
+        // A pending layout or running animations will take care of it.
+        if (mRecyclerView.isLayoutRequested() || mRecyclerView.isAnimating()) {
+            return;
+        }
+
+        recycleChildrenOutOfBounds(DIRECTION_START, mRecycler);
+        recycleChildrenOutOfBounds(DIRECTION_END, mRecycler);
     }
 
     private Bundle getPendingItemSelectionState() {
@@ -693,6 +1010,28 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
                 right - lp.rightMargin, bottom - lp.bottomMargin);
     }
 
+    @Override
+    public void offsetChildrenHorizontal(int offset) {
+        super.offsetChildrenHorizontal(offset);
+
+        if (mIsVertical) {
+            mChildFrameIndex.invalidate();
+        } else {
+            mChildFrameIndex.offset(offset);
+        }
+    }
+
+    @Override
+    public void offsetChildrenVertical(int offset) {
+        super.offsetChildrenVertical(offset);
+
+        if (mIsVertical) {
+            mChildFrameIndex.offset(offset);
+        } else {
+            mChildFrameIndex.invalidate();
+        }
+    }
+
     @Override
     public void onAttachedToWindow(RecyclerView view) {
         super.onAttachedToWindow(view);
@@ -703,6 +1042,7 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
     public void onDetachedFromWindow(RecyclerView view, Recycler recycler) {
         super.onDetachedFromWindow(view, recycler);
         mRecyclerView = null;
+        mRecycler = null;
     }
 
     @Override
@@ -717,6 +1057,8 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
     @Override
     public void onLayoutChildren(Recycler recycler, State state) {
+        mRecycler = recycler;
+
         final ItemSelectionSupport itemSelection = ItemSelectionSupport.from(mRecyclerView);
         if (itemSelection != null) {
             final Bundle itemSelectionState = getPendingItemSelectionState();
@@ -729,8 +1071,13 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
             }
         }
 
+        mHasDeferredFill = false;
+        mPrefetchFirstPosition = RecyclerView.NO_POSITION;
+        mPrefetchLastPosition = RecyclerView.NO_POSITION;
+
         final int anchorItemPosition = getAnchorItemPosition(state);
         detachAndScrapAttachedViews(recycler);
+        resetChildFrameIndex();
         fillSpecific(anchorItemPosition, recycler, state);
 
         onLayoutScrapList(recycler, state);
@@ -746,6 +1093,14 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         }
 
         final List<ViewHolder> scrapList = recycler.getScrapList();
+        final int scrapCount = scrapList.size();
+
+        mScrapIndex.reset(scrapCount);
+        for (int i = 0; i < scrapCount; i++) {
+            mScrapIndex.setPosition(i, scrapList.get(i).getLayoutPosition());
+        }
+        mScrapIndex.sort();
+
         fillFromScrapList(scrapList, DIRECTION_START);
         fillFromScrapList(scrapList, DIRECTION_END);
     }
@@ -756,11 +1111,21 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
     @Override
     public void onItemsAdded(RecyclerView recyclerView, int positionStart, int itemCount) {
+        final ItemSelectionSupport itemSelection = ItemSelectionSupport.from(mRecyclerView);
+        if (itemSelection != null) {
+            itemSelection.onItemsAdded(positionStart, itemCount);
+        }
+
         handleUpdate();
     }
 
     @Override
     public void onItemsRemoved(RecyclerView recyclerView, int positionStart, int itemCount) {
+        final ItemSelectionSupport itemSelection = ItemSelectionSupport.from(mRecyclerView);
+        if (itemSelection != null) {
+            itemSelection.onItemsRemoved(positionStart, itemCount);
+        }
+
         handleUpdate();
     }
 
@@ -771,11 +1136,21 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
 
     @Override
     public void onItemsMoved(RecyclerView recyclerView, int from, int to, int itemCount) {
+        final ItemSelectionSupport itemSelection = ItemSelectionSupport.from(mRecyclerView);
+        if (itemSelection != null) {
+            itemSelection.onItemsMoved(from, to, itemCount);
+        }
+
         handleUpdate();
     }
 
     @Override
     public void onItemsChanged(RecyclerView recyclerView) {
+        final ItemSelectionSupport itemSelection = ItemSelectionSupport.from(mRecyclerView);
+        if (itemSelection != null) {
+            itemSelection.onItemsChanged();
+        }
+
         handleUpdate();
     }
 
@@ -1022,7 +1397,7 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         return computeScrollExtent(state);
     }
 
-    private int computeScrollExtent(RecyclerView.State state) {
+    public int computeScrollExtent(RecyclerView.State state) {
         if (getChildCount() == 0) {
             return 0;
         }
@@ -1043,7 +1418,7 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         return computeScrollRange(state);
     }
 
-    private int computeScrollRange(RecyclerView.State state) {
+    public int computeScrollRange(RecyclerView.State state) {
         if (getChildCount() == 0) {
             return 0;
         }
@@ -1117,6 +1492,240 @@ public abstract class TwoWayLayoutManager extends LayoutManager {
         requestLayout();
     }
 
+    /**
+     * Sets the time budget, in nanoseconds, for filling views while
+     * scrolling. Once the visible gap is filled, the extra off-screen
+     * space (see {@link #getExtraLayoutSpace(State)}) is only filled until
+     * the budget runs out and the rest is picked up on the following
+     * scroll frames. A budget of 0, the default, disables it.
+     */
+    public void setFillBudget(long budgetNanos) {
+        if (budgetNanos < 0) {
+            throw new IllegalArgumentException("Fill budget must not be negative");
+        }
+
+        mFillBudgetNanos = budgetNanos;
+    }
+
+    public long getFillBudget() {
+        return mFillBudgetNanos;
+    }
+
+    /**
+     * Returns whether the last scroll deferred part of the off-screen fill.
+     */
+    public boolean hasDeferredFill() {
+        return mHasDeferredFill;
+    }
+
+    public void setOnFillDeferredListener(OnFillDeferredListener listener) {
+        mOnFillDeferredListener = listener;
+    }
+
+    /**
+     * Sets how many positions ahead of the scroll direction should be
+     * prefetched while the UI thread is idle between frames. Pass
+     * {@link #ITEM_PREFETCH_DEPTH_DEFAULT} to prefetch one line of items,
+     * see {@link #getDefaultItemPrefetchDepth()}, or 0 to disable it.
+     */
+    public void setItemPrefetchDepth(int depth) {
+        if (depth < 0 && depth != ITEM_PREFETCH_DEPTH_DEFAULT) {
+            throw new IllegalArgumentException("Invalid prefetch depth: " + depth);
+        }
+
+        mItemPrefetchDepth = depth;
+    }
+
+    public int getItemPrefetchDepth() {
+        if (mItemPrefetchDepth == ITEM_PREFETCH_DEPTH_DEFAULT) {
+            return getDefaultItemPrefetchDepth();
+        }
+
+        return mItemPrefetchDepth;
+    }
+
+    /**
+     * Returns the number of positions prefetched by default, i.e. the
+     * number of items that usually come in next to each other.
+     */
+    protected int getDefaultItemPrefetchDepth() {
+        return 1;
+    }
+
+    /**
+     * Returns how many positions laid out while scrolling were in the last
+     * range of positions requested for prefetching. This is an upper bound
+     * on actual prefetch hits: RecyclerView may have skipped a requested
+     * position when it ran out of time before the next frame, and the view
+     * may have been evicted from the cache before it was used.
+     */
+    public int getPrefetchRangeHitCount() {
+        return mPrefetchRangeHitCount;
+    }
+
+    /**
+     * Returns how many positions laid out while scrolling were not in the
+     * last range of positions requested for prefetching, and so were
+     * created or bound on the spot unless the view was already cached.
+     */
+    public int getPrefetchRangeMissCount() {
+        return mPrefetchRangeMissCount;
+    }
+
+    /**
+     * Resets the counters returned by {@link #getPrefetchRangeHitCount()}
+     * and {@link #getPrefetchRangeMissCount()}.
+     */
+    public void resetPrefetchRangeCounters() {
+        mPrefetchRangeHitCount = 0;
+        mPrefetchRangeMissCount = 0;
+    }
+
+    /**
+     * Returns the number of lanes the children are laid out in, used to
+     * bucket their frames for {@link #findChildViewUnder(float, float)}.
+     * Lanes are assumed to evenly split the space across the scrolling
+     * direction.
+     */
+    protected int getHitTestLaneCount() {
+        return 1;
+    }
+
+    /**
+     * Finds the topmost child under the given point, like
+     * {@link RecyclerView#findChildViewUnder(float, float)}, without
+     * walking all attached children. Children are looked up by their
+     * laid out frames, which are kept up to date as they are added,
+     * recycled and scrolled. Frames don't include child translations, so
+     * this falls back to the RecyclerView lookup while item animations are
+     * running, when the child found is translated, e.g. while being swiped
+     * with an ItemTouchHelper, and when no child is found, in case a
+     * translated child was moved under the point.
+     *
+     * @param x Horizontal position in pixels to search
+     * @param y Vertical position in pixels to search
+     * @return The child view under (x, y) or null if no matching child is found
+     */
+    public View findChildViewUnder(float x, float y) {
+        if (mRecyclerView == null) {
+            return null;
+        }
+
+        if (mRecyclerView.isAnimating()) {
+            return mRecyclerView.findChildViewUnder(x, y);
+        }
+
+        if (!mChildFrameIndex.isValid(getChildCount())) {
+            rebuildChildFrameIndex();
+        }
+
+        final View child =
+                (mIsVertical ? mChildFrameIndex.find(y, x) : mChildFrameIndex.find(x, y));
+        if (child == null || child.getTranslationX() != 0 || child.getTranslationY() != 0) {
+            return mRecyclerView.findChildViewUnder(x, y);
+        }
+
+        return child;
+    }
+
+    @Override
+    public void collectAdjacentPrefetchPositions(int dx, int dy, State state,
+                                                 LayoutPrefetchRegistry layoutPrefetchRegistry) {
+        // dx/dy carry the last scroll delta, i.e. the direction and
+        // speed of the current scroll.
+        final int delta = (mIsVertical ? dy : dx);
+        final int depth = getItemPrefetchDepth();
+        if (getChildCount() == 0 || delta == 0 || depth <= 0) {
+            return;
+        }
+
+        final int firstPosition;
+        final int lastPosition;
+        final int distance;
+        if (delta > 0) {
+            firstPosition = getLastVisiblePosition() + 1;
+            lastPosition = Math.min(firstPosition + depth, state.getItemCount()) - 1;
+            distance = Math.max(0, mLayoutEnd - getEndWithoutPadding());
+        } else {
+            lastPosition = getFirstVisiblePosition() - 1;
+            firstPosition = Math.max(0, lastPosition - depth + 1);
+            distance = Math.max(0, getStartWithoutPadding() - mLayoutStart);
+        }
+
+        if (lastPosition < firstPosition) {
+            return;
+        }
+
+        for (int i = firstPosition; i <= lastPosition; i++) {
+            layoutPrefetchRegistry.addPosition(i, distance);
+        }
+
+        mPrefetchFirstPosition = firstPosition;
+        mPrefetchLastPosition = lastPosition;
+    }
+
+    private float getAverageChildExtent() {
+        final int childCount = getChildCount();
+        if (childCount == 0) {
+            return 0;
+        }
+
+        final View firstChild = getChildAt(0);
+        final View lastChild = getChildAt(childCount - 1);
+        final int itemRange = getPosition(lastChild) - getPosition(firstChild) + 1;
+
+        return (float) (getChildEnd(lastChild) - getChildStart(firstChild)) / itemRange;
+    }
+
+    /**
+     * Returns the offset of the given adapter position from the start of
+     * the content, along the scrolling direction and without padding. The
+     * default implementation estimates it from the visible children.
+     */
+    public int getOffsetForPosition(int position) {
+        return Math.round(position * getAverageChildExtent());
+    }
+
+    /**
+     * Returns the adapter position of the item at the given offset from the
+     * start of the content, as defined by {@link #getOffsetForPosition(int)},
+     * or {@link RecyclerView#NO_POSITION} if there are no items. Useful to map
+     * a fast-scroll thumb back to an adapter position.
+     */
+    public int getPositionForOffset(int offset) {
+        final int itemCount = getItemCount();
+        if (itemCount == 0) {
+            return RecyclerView.NO_POSITION;
+        }
+
+        final float averageExtent = getAverageChildExtent();
+        if (averageExtent <= 0) {
+            return getFirstVisiblePosition();
+        }
+
+        final int position = (int) (offset / averageExtent);
+        return Math.max(0, Math.min(position, itemCount - 1));
+    }
+
+    @Override
+    public View findViewByPosition(int position) {
+        // Children are kept in adapter order, so the child for the given
+        // position is usually found right away from the first position.
+        final int childCount = getChildCount();
+        if (childCount > 0) {
+            final int index = position - getPosition(getChildAt(0));
+            if (index >= 0 && index < childCount) {
+                final View child = getChildAt(index);
+                final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                if (getPosition(child) == position && !lp.isItemRemoved()) {
+                    return child;
+                }
+            }
+        }
+
+        return super.findViewByPosition(position);
+    }
+
     public int getFirstVisiblePosition() {
         if (getChildCount() == 0) {
             return 0;
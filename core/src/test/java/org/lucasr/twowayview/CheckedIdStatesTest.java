@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import org.junit.Test;
+
+import org.lucasr.twowayview.ItemSelectionSupport.CheckedIdStates;
+import org.lucasr.twowayview.ItemSelectionSupport.CheckedStates;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the runs of CheckedIdStates against a plain map from ids to
+ * positions across random puts and deletes, one by one and in bulk, added,
+ * removed and moved items, and their saved state round trips.
+ */
+public class CheckedIdStatesTest {
+    private static final int ROUNDS = 200;
+    private static final int OPERATIONS = 200;
+    private static final int MAX_ID = 300;
+    private static final int MAX_BATCH = 40;
+
+    private final CheckedIdStates mStates = new CheckedIdStates();
+    private final TreeMap<Long, Integer> mExpected = new TreeMap<Long, Integer>();
+
+    // Ids mostly sit at the position matching them, like sequential row ids
+    // would, so that they form runs.
+    private static int getPosition(Random random, long id) {
+        return (int) (random.nextInt(4) > 0 ? id : random.nextInt(MAX_ID));
+    }
+
+    private static TreeMap<Long, Integer> getEntries(CheckedIdStates states) {
+        final TreeMap<Long, Integer> entries = new TreeMap<Long, Integer>();
+
+        // Runs are sorted by id, non-empty and don't overlap.
+        long previousLastId = Long.MIN_VALUE;
+        for (int run = 0; run < states.getRunCount(); run++) {
+            final long firstId = states.getRunFirstId(run);
+            final int length = states.getRunLength(run);
+            assertTrue(length > 0);
+            assertTrue(run == 0 || firstId > previousLastId);
+
+            for (int i = 0; i < length; i++) {
+                entries.put(firstId + i, states.getRunFirstPosition(run) + i);
+            }
+            previousLastId = firstId + length - 1;
+        }
+
+        return entries;
+    }
+
+    private static void verify(TreeMap<Long, Integer> expected, CheckedIdStates states) {
+        assertEquals(expected, getEntries(states));
+        assertEquals(expected.size(), states.size());
+    }
+
+    private void verifyRoundTrip() {
+        verify(mExpected, new CheckedIdStates(mStates.toByteArray()));
+    }
+
+    @Test
+    public void randomPutsAndDeletesMatchTreeMap() {
+        final Random random = new Random(42);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            mStates.clear();
+            mExpected.clear();
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int operation = random.nextInt(4);
+
+                if (operation == 0) {
+                    final long id = random.nextInt(MAX_ID);
+                    final int position = getPosition(random, id);
+                    mStates.put(id, position);
+                    mExpected.put(id, position);
+                } else if (operation == 1) {
+                    final long id = random.nextInt(MAX_ID);
+                    mStates.delete(id);
+                    mExpected.remove(id);
+                } else if (operation == 2) {
+                    // Batches may repeat an id, the last position wins.
+                    final int count = random.nextInt(MAX_BATCH);
+                    final long[] ids = new long[count + 1];
+                    final int[] positions = new int[count + 1];
+                    long id = random.nextInt(MAX_ID);
+                    for (int j = 0; j < count; j++) {
+                        id = (random.nextInt(4) > 0 ? id + 1 : random.nextInt(MAX_ID));
+                        ids[j] = id;
+                        positions[j] = getPosition(random, id);
+                        mExpected.put(ids[j], positions[j]);
+                    }
+
+                    // Trailing slack in the arrays is ignored.
+                    ids[count] = -1;
+                    mStates.putAll(ids, positions, count);
+                } else {
+                    final int count = random.nextInt(MAX_BATCH);
+                    final long[] ids = new long[count];
+                    final long start = random.nextInt(MAX_ID);
+                    for (int j = 0; j < count; j++) {
+                        ids[j] = (random.nextBoolean() ? start + j : random.nextInt(MAX_ID));
+                        mExpected.remove(ids[j]);
+                    }
+
+                    mStates.deleteAll(ids, count);
+                }
+
+                verify(mExpected, mStates);
+                if (i % 10 == 0) {
+                    verifyRoundTrip();
+                }
+            }
+
+            verifyRoundTrip();
+        }
+    }
+
+    @Test
+    public void extremeIdsRoundTrip() {
+        final long[] ids = new long[] {
+                Long.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE, Long.MAX_VALUE - 1
+        };
+
+        for (int i = 0; i < ids.length; i++) {
+            mStates.put(ids[i], Integer.MAX_VALUE - i);
+            mExpected.put(ids[i], Integer.MAX_VALUE - i);
+        }
+
+        verify(mExpected, mStates);
+        verifyRoundTrip();
+    }
+
+    @Test
+    public void sequentialIdsSaveAsOneRun() {
+        for (int position = 0; position < 100000; position++) {
+            mStates.put(position + 1000L, position);
+            mExpected.put(position + 1000L, position);
+        }
+
+        assertEquals(1, mStates.getRunCount());
+        assertTrue(mStates.toByteArray().length < 16);
+        verifyRoundTrip();
+    }
+
+    @Test
+    public void positionsRestoreFromIds() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            final long id = random.nextInt(MAX_ID);
+            final int position = getPosition(random, id);
+            mStates.put(id, position);
+            mExpected.put(id, position);
+        }
+
+        final CheckedStates positions = new CheckedStates();
+        mStates.getPositions(positions);
+
+        final BitSet expected = new BitSet();
+        for (int position : mExpected.values()) {
+            expected.set(position);
+        }
+
+        assertEquals(expected.cardinality(), positions.getCount());
+        for (int position = 0; position <= MAX_ID; position++) {
+            assertEquals(expected.get(position), positions.get(position));
+        }
+    }
+
+    @Test
+    public void randomDeltasMatchItems() {
+        final Random random = new Random(42);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            mStates.clear();
+
+            // The ids of the items in the adapter, in order.
+            final List<Long> items = new ArrayList<Long>();
+            final Set<Long> checked = new HashSet<Long>();
+            long nextId = 0;
+            for (int i = 0; i < 60; i++) {
+                items.add(nextId++);
+            }
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int itemCount = items.size();
+                final int operation = random.nextInt(4);
+
+                if (operation == 0 && itemCount > 0) {
+                    final int start = random.nextInt(itemCount);
+                    final int end = Math.min(itemCount, start + 1 + random.nextInt(10));
+                    final boolean check = random.nextBoolean();
+                    for (int position = start; position < end; position++) {
+                        final long id = items.get(position);
+                        if (check && checked.add(id)) {
+                            mStates.put(id, position);
+                        } else if (!check && checked.remove(id)) {
+                            mStates.delete(id);
+                        }
+                    }
+                } else if (operation == 1) {
+                    final int positionStart = random.nextInt(itemCount + 1);
+                    final int count = 1 + random.nextInt(8);
+                    mStates.offsetForAddition(positionStart, count);
+                    for (int j = 0; j < count; j++) {
+                        items.add(positionStart, nextId++);
+                    }
+                } else if (operation == 2 && itemCount > 0) {
+                    final int positionStart = random.nextInt(itemCount);
+                    final int count = 1 + random.nextInt(Math.min(8, itemCount - positionStart));
+                    mStates.offsetForRemoval(positionStart, count);
+                    for (int j = 0; j < count; j++) {
+                        checked.remove(items.remove(positionStart));
+                    }
+                } else if (operation == 3 && itemCount > 1) {
+                    final int from = random.nextInt(itemCount);
+                    final int to = random.nextInt(itemCount);
+                    mStates.move(from, to);
+                    items.add(to, items.remove(from));
+                }
+
+                final TreeMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+                for (int position = 0; position < items.size(); position++) {
+                    if (checked.contains(items.get(position))) {
+                        expected.put(items.get(position), position);
+                    }
+                }
+
+                verify(expected, mStates);
+            }
+        }
+    }
+
+    @Test
+    public void additionSplitsRunAtInsertionPoint() {
+        for (int position = 0; position < 10; position++) {
+            mStates.put(100 + position, position);
+            mExpected.put(100L + position, position >= 4 ? position + 3 : position);
+        }
+
+        mStates.offsetForAddition(4, 3);
+
+        verify(mExpected, mStates);
+        assertEquals(2, mStates.getRunCount());
+        assertEquals(4, mStates.getRunLength(0));
+        assertEquals(104, mStates.getRunFirstId(1));
+        assertEquals(7, mStates.getRunFirstPosition(1));
+
+        // Inserting right before or after a run doesn't split it.
+        mStates.offsetForAddition(0, 1);
+        mStates.offsetForAddition(5, 1);
+        assertEquals(2, mStates.getRunCount());
+    }
+
+    @Test
+    public void removalMergesRuns() {
+        // Ids 0 to 9, with an unchecked item sitting at position 5 between
+        // ids 4 and 5.
+        for (int id = 0; id < 10; id++) {
+            final int position = (id < 5 ? id : id + 1);
+            mStates.put(id, position);
+            mExpected.put((long) id, id);
+        }
+        assertEquals(2, mStates.getRunCount());
+
+        mStates.offsetForRemoval(5, 1);
+
+        verify(mExpected, mStates);
+        assertEquals(1, mStates.getRunCount());
+    }
+
+    @Test
+    public void removalInsideRunSplitsIt() {
+        for (int position = 0; position < 10; position++) {
+            mStates.put(position, position);
+        }
+        mStates.put(50, 20);
+
+        mStates.offsetForRemoval(3, 4);
+
+        for (int id = 0; id < 3; id++) {
+            mExpected.put((long) id, id);
+        }
+        for (int id = 7; id < 10; id++) {
+            mExpected.put((long) id, id - 4);
+        }
+        mExpected.put(50L, 16);
+
+        verify(mExpected, mStates);
+        assertEquals(3, mStates.getRunCount());
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import org.junit.Test;
+
+import org.lucasr.twowayview.ItemSelectionSupport.CheckedStates;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the runs of CheckedStates against a plain BitSet across random
+ * checks and unchecks, added, removed and moved items, and their saved
+ * state round trips.
+ */
+public class CheckedStatesTest {
+    private static final int ROUNDS = 200;
+    private static final int OPERATIONS = 200;
+    private static final int MAX_POSITION = 500;
+
+    private CheckedStates mStates = new CheckedStates();
+    private final BitSet mExpected = new BitSet();
+
+    private void put(int start, int end, boolean checked) {
+        final int expectedDelta = (checked
+                ? (end - start) - mExpected.get(start, end).cardinality()
+                : -mExpected.get(start, end).cardinality());
+
+        assertEquals(expectedDelta, mStates.put(start, end, checked));
+        mExpected.set(start, end, checked);
+    }
+
+    private static void verify(BitSet expected, CheckedStates states) {
+        assertEquals(expected.cardinality(), states.getCount());
+
+        // Runs are sorted, non-empty and never touch each other.
+        int run = 0;
+        for (int start = expected.nextSetBit(0); start >= 0;
+                start = expected.nextSetBit(expected.nextClearBit(start))) {
+            assertTrue(run < states.getRunCount());
+            assertEquals(start, states.getRunStart(run));
+            assertEquals(expected.nextClearBit(start), states.getRunEnd(run));
+            run++;
+        }
+        assertEquals(run, states.getRunCount());
+
+        for (int position = 0; position <= expected.length() + 1; position++) {
+            assertEquals(expected.get(position), states.get(position));
+        }
+    }
+
+    private void verifyRoundTrip() {
+        verify(mExpected, new CheckedStates(mStates.toByteArray()));
+    }
+
+    @Test
+    public void randomPutsMatchBitSet() {
+        final Random random = new Random(42);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            mStates = (random.nextBoolean() ? new CheckedStates() : mStates);
+            mStates.clear();
+            mExpected.clear();
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int start = random.nextInt(MAX_POSITION);
+                final boolean checked = (random.nextInt(3) > 0);
+
+                if (random.nextBoolean()) {
+                    put(start, start + 1, checked);
+                } else {
+                    put(start, start + random.nextInt(random.nextBoolean() ? 5 : 100), checked);
+                }
+
+                verify(mExpected, mStates);
+                if (i % 10 == 0) {
+                    verifyRoundTrip();
+                }
+            }
+
+            verifyRoundTrip();
+        }
+    }
+
+    @Test
+    public void emptyStatesRoundTrip() {
+        verifyRoundTrip();
+    }
+
+    @Test
+    public void sparseRunsSaveAsRuns() {
+        put(3, 10, true);
+        put(1000000, 1000001, true);
+        put(5000000, 5000010, true);
+
+        assertTrue(mStates.toByteArray().length < 32);
+        verifyRoundTrip();
+    }
+
+    @Test
+    public void denseRunsSaveAsBitmap() {
+        final int itemCount = 500000;
+        for (int position = 0; position < itemCount; position += 2) {
+            put(position, position + 1, true);
+        }
+
+        // One bit per position, instead of two varints per run.
+        assertTrue(mStates.toByteArray().length <= itemCount / 8 + 16);
+        verifyRoundTrip();
+
+        // A bitmap not starting at zero, with a partial last byte.
+        mStates.clear();
+        mExpected.clear();
+        for (int position = 777; position < 10000; position += 3) {
+            put(position, position + 2, true);
+        }
+
+        verifyRoundTrip();
+    }
+
+    private static void insertBits(BitSet bits, int positionStart, int itemCount) {
+        final BitSet tail = bits.get(positionStart, Math.max(positionStart, bits.length()));
+        bits.clear(positionStart, Integer.MAX_VALUE);
+        for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+            bits.set(positionStart + itemCount + i);
+        }
+    }
+
+    private static void removeBits(BitSet bits, int positionStart, int itemCount) {
+        final int end = positionStart + itemCount;
+        final BitSet tail = bits.get(end, Math.max(end, bits.length()));
+        bits.clear(positionStart, Integer.MAX_VALUE);
+        for (int i = tail.nextSetBit(0); i >= 0; i = tail.nextSetBit(i + 1)) {
+            bits.set(positionStart + i);
+        }
+    }
+
+    private void offsetForAddition(int positionStart, int itemCount) {
+        mStates.offsetForAddition(positionStart, itemCount);
+        insertBits(mExpected, positionStart, itemCount);
+    }
+
+    private void offsetForRemoval(int positionStart, int itemCount) {
+        mStates.offsetForRemoval(positionStart, itemCount);
+        removeBits(mExpected, positionStart, itemCount);
+    }
+
+    private void move(int from, int to) {
+        mStates.move(from, to);
+
+        final boolean checked = mExpected.get(from);
+        removeBits(mExpected, from, 1);
+        insertBits(mExpected, to, 1);
+        mExpected.set(to, checked);
+    }
+
+    @Test
+    public void randomDeltasMatchBitSet() {
+        final Random random = new Random(42);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            mStates.clear();
+            mExpected.clear();
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int operation = random.nextInt(4);
+                final int position = random.nextInt(MAX_POSITION);
+
+                if (operation == 0) {
+                    put(position, position + random.nextInt(20), random.nextInt(3) > 0);
+                } else if (operation == 1) {
+                    offsetForAddition(position, 1 + random.nextInt(random.nextBoolean() ? 3 : 50));
+                } else if (operation == 2) {
+                    offsetForRemoval(position, 1 + random.nextInt(random.nextBoolean() ? 3 : 50));
+                } else {
+                    move(position, random.nextInt(MAX_POSITION));
+                }
+
+                verify(mExpected, mStates);
+            }
+        }
+    }
+
+    @Test
+    public void additionSplitsRunAtInsertionPoint() {
+        put(0, 10, true);
+        offsetForAddition(4, 3);
+
+        verify(mExpected, mStates);
+        assertEquals(2, mStates.getRunCount());
+        assertEquals(4, mStates.getRunEnd(0));
+        assertEquals(7, mStates.getRunStart(1));
+    }
+
+    @Test
+    public void removalMergesRuns() {
+        put(0, 5, true);
+        put(6, 10, true);
+        assertEquals(2, mStates.getRunCount());
+
+        offsetForRemoval(5, 1);
+
+        verify(mExpected, mStates);
+        assertEquals(1, mStates.getRunCount());
+        assertEquals(9, mStates.getCount());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_END;
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_START;
+
+/**
+ * Times the scrap lookups of the predictive animation pass, see
+ * TwoWayLayoutManager#onLayoutScrapList, after removing a batch of 500
+ * items, with the indexed lookup and with the scan of the whole scrap list
+ * it replaced.
+ *
+ * <p>A full layout pass with item animations needs a device, so this
+ * replays the lookups fillFromScrapList() makes: one per position, in
+ * both directions from the attached children, for as long as any holder
+ * is left in that direction. Measuring and laying out the children is the
+ * same in both cases and is left out.
+ *
+ * <p>This is not part of the unit tests, run it with
+ * {@code ./gradlew :core:benchmark}.
+ */
+public class ScrapIndexBenchmark {
+    private static final int REMOVED_COUNT = 500;
+    private static final int CHILD_COUNT = 20;
+    private static final int WARMUP_PASSES = 2000;
+    private static final int PASSES = 1000;
+
+    // First position of the attached children.
+    private static final int FIRST_POSITION = REMOVED_COUNT / 2;
+
+    private final ScrapIndex mIndex = new ScrapIndex();
+
+    // Layout positions of the scrapped holders, in scrap list order.
+    private final int[] mPositions = new int[REMOVED_COUNT];
+    private int mScrapCount;
+
+    /**
+     * Scraps the holders of the removed items, half of them before the
+     * attached children and half after, shuffled like the recycler's scrap
+     * list.
+     */
+    private void scrapRemovedItems(Random random) {
+        mScrapCount = 0;
+        for (int position = 0; position < REMOVED_COUNT + CHILD_COUNT; position++) {
+            if (position < FIRST_POSITION || position >= FIRST_POSITION + CHILD_COUNT) {
+                mPositions[mScrapCount++] = position;
+            }
+        }
+
+        for (int i = mScrapCount - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int swap = mPositions[i];
+            mPositions[i] = mPositions[j];
+            mPositions[j] = swap;
+        }
+    }
+
+    private int fillIndexed(int direction, int position) {
+        int checksum = 0;
+        int index;
+        while ((index = mIndex.findNext(direction, position)) != ScrapIndex.NO_INDEX) {
+            checksum += index;
+            position += (direction == DIRECTION_END ? 1 : -1);
+        }
+
+        return checksum;
+    }
+
+    private int layoutIndexed(int firstPosition) {
+        mIndex.reset(mScrapCount);
+        for (int i = 0; i < mScrapCount; i++) {
+            mIndex.setPosition(i, mPositions[i]);
+        }
+        mIndex.sort();
+
+        return fillIndexed(DIRECTION_START, firstPosition - 1)
+                + fillIndexed(DIRECTION_END, firstPosition + CHILD_COUNT);
+    }
+
+    private int fillByScan(int direction, int position) {
+        int checksum = 0;
+        int index;
+        while ((index = ScrapIndexTest.findNextByScan(mPositions, mScrapCount, direction,
+                position)) != ScrapIndex.NO_INDEX) {
+            checksum += index;
+            position += (direction == DIRECTION_END ? 1 : -1);
+        }
+
+        return checksum;
+    }
+
+    private int layoutByScan(int firstPosition) {
+        return fillByScan(DIRECTION_START, firstPosition - 1)
+                + fillByScan(DIRECTION_END, firstPosition + CHILD_COUNT);
+    }
+
+    @Test
+    public void compareLookupTime() {
+        scrapRemovedItems(new Random(42));
+
+        for (int i = 0; i < WARMUP_PASSES; i++) {
+            assertEquals(layoutByScan(FIRST_POSITION), layoutIndexed(FIRST_POSITION));
+        }
+
+        long start = System.nanoTime();
+        int checksum = 0;
+        for (int i = 0; i < PASSES; i++) {
+            checksum += layoutByScan(FIRST_POSITION);
+        }
+        final long scanNanos = (System.nanoTime() - start) / PASSES;
+
+        start = System.nanoTime();
+        for (int i = 0; i < PASSES; i++) {
+            checksum -= layoutIndexed(FIRST_POSITION);
+        }
+        final long indexedNanos = (System.nanoTime() - start) / PASSES;
+
+        assertEquals(0, checksum);
+
+        System.out.println("Scrap lookups per layout pass, " + REMOVED_COUNT
+                + " removed items and " + CHILD_COUNT + " attached children");
+        System.out.println(String.format("  scan:    %,10d ns", scanNanos));
+        System.out.println(String.format("  indexed: %,10d ns (including the sort)",
+                indexedNanos));
+    }
+}
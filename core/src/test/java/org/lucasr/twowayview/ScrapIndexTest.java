@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_END;
+import static org.lucasr.twowayview.TwoWayLayoutManager.DIRECTION_START;
+
+/**
+ * Checks ScrapIndex against a scan of the whole scrap list, the way
+ * TwoWayLayoutManager looked up scrap views before.
+ */
+public class ScrapIndexTest {
+    private static final int ROUNDS = 500;
+
+    /**
+     * Returns the index of the holder closest to the given position in the
+     * given direction, the first one in the list in case of a tie.
+     */
+    static int findNextByScan(int[] positions, int count, int direction, int position) {
+        int closest = ScrapIndex.NO_INDEX;
+        int closestDistance = Integer.MAX_VALUE;
+
+        for (int i = 0; i < count; i++) {
+            final int distance = positions[i] - position;
+            if ((distance < 0 && direction == DIRECTION_END) ||
+                    (distance > 0 && direction == DIRECTION_START)) {
+                continue;
+            }
+
+            final int absDistance = Math.abs(distance);
+            if (absDistance < closestDistance) {
+                closest = i;
+                closestDistance = absDistance;
+
+                if (distance == 0) {
+                    break;
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    @Test
+    public void findNextMatchesScan() {
+        final Random random = new Random(42);
+        final ScrapIndex index = new ScrapIndex();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // Small ranges give holders sharing a position.
+            final int count = random.nextInt(40);
+            final int range = 1 + random.nextInt(random.nextBoolean() ? 10 : 200);
+
+            final int[] positions = new int[count];
+            index.reset(count);
+            for (int i = 0; i < count; i++) {
+                positions[i] = random.nextInt(range);
+                index.setPosition(i, positions[i]);
+            }
+            index.sort();
+
+            for (int position = -2; position < range + 2; position++) {
+                assertEquals(findNextByScan(positions, count, DIRECTION_START, position),
+                        index.findNext(DIRECTION_START, position));
+                assertEquals(findNextByScan(positions, count, DIRECTION_END, position),
+                        index.findNext(DIRECTION_END, position));
+            }
+        }
+    }
+}
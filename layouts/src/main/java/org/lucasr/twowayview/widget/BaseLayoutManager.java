@@ -32,6 +32,8 @@ import android.view.ViewGroup.MarginLayoutParams;
 import org.lucasr.twowayview.TwoWayLayoutManager;
 import org.lucasr.twowayview.widget.Spans.LaneInfo;
 
+import java.util.Arrays;
+
 import static org.lucasr.twowayview.widget.Spans.calculateLaneSizeH;
 import static org.lucasr.twowayview.widget.Spans.calculateLaneSizeV;
 
@@ -50,134 +52,82 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
         super(context, attrs);
     }
 
-    protected static class ItemEntry implements Parcelable {
-        public int startLane;
-        public int anchorLane;
-
-        private int[] spanMargins;
-
-        public ItemEntry(int startLane, int anchorLane) {
-            this.startLane = startLane;
-            this.anchorLane = anchorLane;
-        }
-
-        public ItemEntry(Parcel in) {
-            startLane = in.readInt();
-            anchorLane = in.readInt();
-
-            final int marginCount = in.readInt();
-            if (marginCount > 0) {
-                spanMargins = new int[marginCount];
-                for (int i = 0; i < marginCount; i++) {
-                    spanMargins[i] = in.readInt();
-                }
-            }
-        }
-
-        @Override
-        public int describeContents() {
-            return 0;
-        }
-
-        @Override
-        public void writeToParcel(Parcel out, int flags) {
-            out.writeInt(startLane);
-            out.writeInt(anchorLane);
-
-            final int marginCount = (spanMargins != null ? spanMargins.length : 0);
-            out.writeInt(marginCount);
-
-            for (int i = 0; i < marginCount; i++) {
-                out.writeInt(spanMargins[i]);
-            }
-        }
-
-        void setLane(LaneInfo laneInfo) {
-            startLane = laneInfo.startLane;
-            anchorLane = laneInfo.anchorLane;
-        }
-
-        void invalidateLane() {
-            startLane = Spans.NO_LANE;
-            anchorLane = Spans.NO_LANE;
-            spanMargins = null;
-        }
-
-        private boolean hasSpanMargins() {
-            return (spanMargins != null);
-        }
-
-        private int getSpanMargin(int index) {
-            if (spanMargins == null) {
-                return 0;
-            }
-
-            return spanMargins[index];
-        }
-
-        private void setSpanMargin(int index, int margin, int span) {
-            if (spanMargins == null) {
-                spanMargins = new int[span];
-            }
-
-            spanMargins[index] = margin;
-        }
-
-        public static final Creator<ItemEntry> CREATOR
-                = new Creator<ItemEntry>() {
-            @Override
-            public ItemEntry createFromParcel(Parcel in) {
-                return new ItemEntry(in);
-            }
-
-            @Override
-            public ItemEntry[] newArray(int size) {
-                return new ItemEntry[size];
-            }
-        };
-    }
-
     public static final int UPDATE_ADD = 0;
     public static final int UPDATE_REMOVE = 1;
     public static final int UPDATE_UPDATE = 2;
     public static final int UPDATE_MOVE = 3;
 
+    /**
+     * Items can have any extent, see {@link #setFixedItemExtent(int)}.
+     */
+    public static final int ITEM_EXTENT_VARIABLE = 0;
+
+    /**
+     * All items have the extent of the first measured item, see
+     * {@link #setFixedItemExtent(int)}.
+     */
+    public static final int ITEM_EXTENT_AUTO = -1;
+
     private Spans mSpans;
     private Spans mSpansToRestore;
 
-    private ItemEntries mItemEntries;
+    private ItemEntries mItemEntries = new ItemEntries();
     private ItemEntries mItemEntriesToRestore;
 
+    private final ItemExtents mItemExtents = new ItemExtents();
+
+    private final LaneCheckpoints mLaneCheckpoints = new LaneCheckpoints();
+
+    private int mFixedItemExtent = ITEM_EXTENT_VARIABLE;
+    private int mMeasuredItemExtent;
+
     protected final Rect mChildFrame = new Rect();
     protected final Rect mTempRect = new Rect();
     protected final LaneInfo mTempLaneInfo = new LaneInfo();
-
-    protected void pushChildFrame(ItemEntry entry, Rect childFrame, int lane, int laneSpan,
+    private final LaneInfo mSpacingLaneInfo = new LaneInfo();
+
+    // Last adapter position placed in each lane, derived from the item
+    // entries and cached until they change. See isLastInLanesPosition().
+    private int[] mLastPositionInLane = new int[0];
+    private ItemEntries mLastPositionEntries;
+    private int mLastPositionVersion;
+    private int mLastPositionItemCount = -1;
+    private boolean mHasLastPositionInLane;
+
+    /**
+     * Pushes the given child frame into its lanes. The span margins are read from
+     * (or stored into) the item entry at {@code entryPosition}, if any. Pass
+     * {@link RecyclerView#NO_POSITION} when the frame has no item entry.
+     */
+    protected void pushChildFrame(int entryPosition, Rect childFrame, int lane, int laneSpan,
                                   int direction) {
+        final boolean hasEntry = mItemEntries.hasItemEntry(entryPosition);
         final boolean shouldSetMargins = (direction == DIRECTION_END &&
-                entry != null && !entry.hasSpanMargins());
+                hasEntry && !mItemEntries.hasSpanMargins(entryPosition));
 
         for (int i = lane; i < lane + laneSpan; i++) {
             final int spanMargin;
-            if (entry != null && direction != DIRECTION_END) {
-                spanMargin = entry.getSpanMargin(i - lane);
+            if (hasEntry && direction != DIRECTION_END) {
+                spanMargin = mItemEntries.getSpanMargin(entryPosition, i - lane);
             } else {
                 spanMargin = 0;
             }
 
             final int margin = mSpans.pushChildFrame(childFrame, i, spanMargin, direction);
             if (laneSpan > 1 && shouldSetMargins) {
-                entry.setSpanMargin(i - lane, margin, laneSpan);
+                mItemEntries.setSpanMargin(entryPosition, i - lane, margin, laneSpan);
             }
         }
     }
 
-    private void popChildFrame(ItemEntry entry, Rect childFrame, int lane, int laneSpan,
+    private void popChildFrame(int entryPosition, Rect childFrame, int lane, int laneSpan,
                                int direction) {
+        final boolean hasEntry = mItemEntries.hasItemEntry(entryPosition);
+
         for (int i = lane; i < lane + laneSpan; i++) {
             final int spanMargin;
-            if (entry != null && direction != DIRECTION_END) {
-                spanMargin = entry.getSpanMargin(i - lane);
+            if (hasEntry && direction != DIRECTION_END) {
+                spanMargin = mItemEntries.getSpanMargin(entryPosition, i - lane);
             } else {
                 spanMargin = 0;
             }
@@ -201,40 +151,72 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
         return mSpans;
     }
 
-    void setItemEntryForPosition(int position, ItemEntry entry) {
-        if (mItemEntries != null) {
-            mItemEntries.putItemEntry(position, entry);
+    ItemEntries getItemEntries() {
+        return mItemEntries;
+    }
+
+    /**
+     * Declares that all items have the same extent along the scrolling
+     * direction, including decorations and margins. Pass
+     * {@link #ITEM_EXTENT_AUTO} to use the extent of the first measured item,
+     * or {@link #ITEM_EXTENT_VARIABLE} (the default) to disable it.
+     *
+     * With a fixed item extent, scroll offset and range as well as the
+     * layout for a jump target are computed without measuring any item.
+     * Only honored by {@link ListLayoutManager} and {@link GridLayoutManager}.
+     */
+    public void setFixedItemExtent(int extent) {
+        if (extent < ITEM_EXTENT_AUTO) {
+            throw new IllegalArgumentException("Invalid item extent: " + extent);
         }
+
+        mFixedItemExtent = extent;
+        mMeasuredItemExtent = 0;
     }
 
-    ItemEntry getItemEntryForPosition(int position) {
-        return (mItemEntries != null ? mItemEntries.getItemEntry(position) : null);
+    public int getFixedItemExtent() {
+        return mFixedItemExtent;
     }
 
-    void clearItemEntries() {
-        if (mItemEntries != null) {
-            mItemEntries.clear();
+    boolean supportsFixedItemExtent() {
+        return false;
+    }
+
+    /**
+     * Returns the extent shared by all items or 0 if it's not known.
+     */
+    int getItemExtent() {
+        if (!supportsFixedItemExtent()) {
+            return 0;
         }
+
+        return (mFixedItemExtent == ITEM_EXTENT_AUTO ? mMeasuredItemExtent : mFixedItemExtent);
+    }
+
+    LaneCheckpoints getLaneCheckpoints() {
+        return mLaneCheckpoints;
+    }
+
+    void clearItemEntries() {
+        mItemEntries.clear();
+        mItemExtents.clear();
         invalidateItemLanesAfter(0);
         ensureLayoutState();
     }
 
     void invalidateItemLanesAfter(int position) {
-        if (mItemEntries != null) {
-            mItemEntries.invalidateItemLanesAfter(position);
-        }
+        mItemEntries.invalidateItemLanesAfter(position);
+        mLaneCheckpoints.invalidateAfter(position);
     }
 
     void offsetForAddition(int positionStart, int itemCount) {
-        if (mItemEntries != null) {
-            mItemEntries.offsetForAddition(positionStart, itemCount);
-        }
+        mItemEntries.offsetForAddition(positionStart, itemCount);
+        mItemExtents.offsetForAddition(positionStart, itemCount);
     }
 
     void offsetForRemoval(int positionStart, int itemCount) {
-        if (mItemEntries != null) {
-            mItemEntries.offsetForRemoval(positionStart, itemCount);
-        }
+        mItemEntries.offsetForRemoval(positionStart, itemCount);
+        mItemExtents.offsetForRemoval(positionStart, itemCount);
     }
 
     private void requestMoveLayout() {
@@ -272,13 +254,11 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
 
         final Spans oldSpans = mSpans;
         mSpans = new Spans(this, laneCount);
+        mLaneCheckpoints.clear();
+        mMeasuredItemExtent = 0;
 
         requestMoveLayout();
 
-        if (mItemEntries == null) {
-            mItemEntries = new ItemEntries();
-        }
-
         if (oldSpans != null
                 && oldSpans.getOrientation() == mSpans.getOrientation()
                 && oldSpans.getLaneSizeH() == mSpans.getLaneSizeH()
@@ -286,13 +266,19 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
             invalidateItemLanesAfter(0);
         } else {
             mItemEntries.clear();
+            mItemExtents.clear();
         }
 
         return true;
     }
 
     private void handleUpdate(int positionStart, int itemCountOrToPosition, int cmd) {
-        invalidateItemLanesAfter(positionStart);
+        // A move also shifts the items between both positions.
+        if (cmd == UPDATE_MOVE) {
+            invalidateItemLanesAfter(Math.min(positionStart, itemCountOrToPosition));
+        } else {
+            invalidateItemLanesAfter(positionStart);
+        }
 
         switch (cmd) {
             case UPDATE_ADD:
@@ -344,10 +330,16 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
         if (restoringLanes) {
 
             mSpans = mSpansToRestore;
-            mItemEntries = mItemEntriesToRestore;
+            if (mItemEntriesToRestore != null) {
+                mItemEntries = mItemEntriesToRestore;
+            } else {
+                mItemEntries.clear();
+            }
 
             mSpansToRestore = null;
             mItemEntriesToRestore = null;
+            mItemExtents.clear();
+            mLaneCheckpoints.clear();
         }
 
         final boolean refreshingLanes = ensureLayoutState();
@@ -438,15 +430,143 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
             mSpansToRestore = new Spans(this, getOrientation(), ss.lanes, ss.laneSizeH, ss.laneSizeV);
             mItemEntriesToRestore = ss.itemEntries;
         } else {
-            if(mItemEntries!=null) {
-                mItemEntries.clear();
-            }
+            mItemEntries.clear();
+            mItemExtents.clear();
             invalidateItemLanesAfter(0);
         }
 
         super.onRestoreInstanceState(ss.getSuperState());
     }
 
+    /**
+     * Computed from the extents of the laid out items in O(log n). Items that
+     * were never laid out are assumed to have the average extent.
+     *
+     * The offset is exact for {@link ListLayoutManager}. Laned layouts get
+     * the total extent of the items before the position, weighted by their
+     * lane span, spread evenly across the lanes. That's exact as long as the
+     * lanes are balanced, e.g. a grid with rows of equal extent, and an
+     * approximation otherwise, e.g. in staggered and spannable grids.
+     */
+    @Override
+    public int getOffsetForPosition(int position) {
+        if (!canComputeContentOffsets()) {
+            return super.getOffsetForPosition(position);
+        }
+
+        final int itemExtent = getItemExtent();
+        if (itemExtent > 0) {
+            return (position / getLaneCount()) * itemExtent;
+        }
+
+        final ItemExtents extents = mItemExtents;
+        final int extentCount = extents.getExtentCount();
+        if (extentCount == 0) {
+            return 0;
+        }
+
+        final int knownCount = extents.getExtentCountBefore(position);
+        final long unknownExtent =
+                (position - knownCount) * extents.getTotalExtent() / extentCount;
+
+        return (int) ((extents.getExtentBefore(position) + unknownExtent) / getLaneCount());
+    }
+
+    /**
+     * Computed from the extents of the laid out items in O(log n). Items that
+     * were never laid out are assumed to have the average extent. The inverse
+     * of {@link #getOffsetForPosition(int)}, with the same approximation for
+     * laned layouts.
+     */
+    @Override
+    public int getPositionForOffset(int offset) {
+        final int itemCount = getItemCount();
+        if (itemCount == 0 || !canComputeContentOffsets()) {
+            return super.getPositionForOffset(offset);
+        }
+
+        final int laneCount = getLaneCount();
+        final int itemExtent = getItemExtent();
+
+        final int position;
+        if (itemExtent > 0) {
+            position = (Math.max(0, offset) / itemExtent) * laneCount;
+        } else {
+            final ItemExtents extents = mItemExtents;
+            final double unknownExtent =
+                    (double) extents.getTotalExtent() / extents.getExtentCount();
+            position = extents.getPositionForExtent((long) offset * laneCount, unknownExtent);
+        }
+
+        return Math.max(0, Math.min(position, itemCount - 1));
+    }
+
+    private boolean canComputeContentOffsets() {
+        return (getItemExtent() > 0 || mItemExtents.getExtentCount() > 0);
+    }
+
+    @Override
+    public int computeScrollOffset(State state) {
+        if (getChildCount() == 0 || !canComputeContentOffsets()) {
+            return super.computeScrollOffset(state);
+        }
+
+        final View firstChild = getChildAt(0);
+        final int offset = getOffsetForPosition(getPosition(firstChild)) +
+                getStartWithPadding() - getChildStart(firstChild);
+
+        final int maxOffset = computeScrollRange(state) - computeScrollExtent(state);
+        return Math.max(0, Math.min(offset, maxOffset));
+    }
+
+    @Override
+    public int computeScrollExtent(State state) {
+        if (getChildCount() == 0 || !canComputeContentOffsets()) {
+            return super.computeScrollExtent(state);
+        }
+
+        return Math.min(getEndWithPadding() - getStartWithPadding(),
+                computeScrollRange(state));
+    }
+
+    @Override
+    public int computeScrollRange(State state) {
+        if (getChildCount() == 0 || !canComputeContentOffsets()) {
+            return super.computeScrollRange(state);
+        }
+
+        final int itemCount = state.getItemCount();
+        final int itemExtent = getItemExtent();
+        if (itemExtent > 0) {
+            final int laneCount = getLaneCount();
+            return ((itemCount + laneCount - 1) / laneCount) * itemExtent;
+        }
+
+        return getOffsetForPosition(itemCount);
+    }
+
+    @Override
+    protected int getDefaultItemPrefetchDepth() {
+        // One item per lane, i.e. the next line of items.
+        return getLaneCount();
+    }
+
+    @Override
+    protected int getLayoutEdge(int direction) {
+        // The lanes already track where the remaining children start
+        // and end, including their margins.
+        if (direction == DIRECTION_START) {
+            return mSpans.getOuterStart();
+        } else {
+            return mSpans.getOuterEnd();
+        }
+    }
+
+    @Override
+    protected int getHitTestLaneCount() {
+        return getLaneCount();
+    }
+
     @Override
     protected boolean canAddMoreViews(int direction, int limit) {
         if (direction == DIRECTION_START) {
@@ -482,6 +602,11 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
     protected void measureChild(View child, int direction) {
         cacheChildLaneAndSpan(child, direction);
         measureChildWithMargins(child);
+
+        if (mFixedItemExtent == ITEM_EXTENT_AUTO && mMeasuredItemExtent == 0) {
+            mMeasuredItemExtent = (isVertical() ? getDecoratedMeasuredHeight(child) :
+                    getDecoratedMeasuredWidth(child));
+        }
     }
 
     @Override
@@ -490,15 +615,22 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
 
         mSpans.getChildFrame(mChildFrame, getDecoratedMeasuredWidth(child),
                 getDecoratedMeasuredHeight(child), mTempLaneInfo, direction);
-        final ItemEntry entry = cacheChildFrame(child, mChildFrame);
+        final int entryPosition = cacheChildFrame(child, mChildFrame);
 
         layoutDecorated(child, mChildFrame.left, mChildFrame.top, mChildFrame.right,
                 mChildFrame.bottom);
 
         final LayoutParams lp = (LayoutParams) child.getLayoutParams();
         if (!lp.isItemRemoved()) {
-            pushChildFrame(entry, mChildFrame, mTempLaneInfo.startLane,
-                    getLaneSpanForChild(child), direction);
+            final int laneSpan = getLaneSpanForChild(child);
+            pushChildFrame(entryPosition, mChildFrame, mTempLaneInfo.startLane, laneSpan,
+                    direction);
+
+            // Offsets don't need the measured extents with a fixed one.
+            if (getItemExtent() == 0) {
+                final int extent = (isVertical() ? mChildFrame.height() : mChildFrame.width());
+                mItemExtents.setExtent(getPosition(child), extent * laneSpan);
+            }
         }
     }
 
@@ -508,7 +640,7 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
         getLaneForPosition(mTempLaneInfo, position, direction);
         getDecoratedChildFrame(child, mChildFrame);
 
-        popChildFrame(getItemEntryForPosition(position), mChildFrame, mTempLaneInfo.startLane,
+        popChildFrame(position, mChildFrame, mTempLaneInfo.startLane,
                 getLaneSpanForChild(child), direction);
     }
 
@@ -524,14 +656,194 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
         return 1;
     }
 
-    ItemEntry cacheChildLaneAndSpan(View child, int direction) {
+    /**
+     * Checks whether the item at the given position is in the first row of
+     * the layout i.e. the lane spans of the items before it don't add up to
+     * the lane count.
+     */
+    boolean isFirstRowPosition(int position) {
+        if (position >= getLaneCount()) {
+            return false;
+        }
+
+        ensureSpacingFlags(position);
+        return (mItemEntries.hasSpacingFlags(position) ?
+                mItemEntries.isFirstRow(position) : computeFirstRow(position));
+    }
+
+    /**
+     * Checks whether the item at the given position is placed right after
+     * an item in the first lane, taking the lane spans into account.
+     */
+    boolean isSecondLanePosition(int position) {
+        ensureSpacingFlags(position);
+        return (mItemEntries.hasSpacingFlags(position) ?
+                mItemEntries.isSecondLane(position) : computeSecondLane(position));
+    }
+
+    /**
+     * Checks whether the item at the given position is the last one in the
+     * lanes it covers i.e. it sits at the end edge of the layout. This holds
+     * for the last item in each lane when every item has a lane span of 1.
+     */
+    boolean isLastRowPosition(int position, int itemCount) {
+        return (position >= itemCount - getLaneCount());
+    }
+
+    /**
+     * Implementation of {@link #isLastRowPosition(int, int)} for layouts
+     * keeping the lane of every item in the item entries. Returns false
+     * until the entries reach the last adapter position, as there's no
+     * way to know where the remaining items will be placed.
+     */
+    boolean isLastInLanesPosition(int position, int itemCount) {
+        if (!ensureLastPositionInLanes(itemCount) || !mItemEntries.hasItemEntry(position)) {
+            return false;
+        }
+
+        final int startLane = mItemEntries.getStartLane(position);
+        if (startLane == Spans.NO_LANE) {
+            return false;
+        }
+
+        final int endLane =
+                Math.min(startLane + getLaneSpanForPosition(position), mLastPositionInLane.length);
+        for (int lane = startLane; lane < endLane; lane++) {
+            if (mLastPositionInLane[lane] != position) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the last position placed in each lane by walking the item
+     * entries back from the last adapter position until all lanes are
+     * covered. The result is kept until the entries change.
+     */
+    private boolean ensureLastPositionInLanes(int itemCount) {
+        final int laneCount = getLaneCount();
+        if (mLastPositionEntries == mItemEntries &&
+                mLastPositionVersion == mItemEntries.getLaneVersion() &&
+                mLastPositionItemCount == itemCount &&
+                mLastPositionInLane.length == laneCount) {
+            return mHasLastPositionInLane;
+        }
+
+        mLastPositionEntries = mItemEntries;
+        mLastPositionVersion = mItemEntries.getLaneVersion();
+        mLastPositionItemCount = itemCount;
+        mHasLastPositionInLane = false;
+
+        if (mLastPositionInLane.length != laneCount) {
+            mLastPositionInLane = new int[laneCount];
+        }
+        Arrays.fill(mLastPositionInLane, RecyclerView.NO_POSITION);
+
+        int remainingLanes = laneCount;
+        for (int i = itemCount - 1; i >= 0 && remainingLanes > 0; i--) {
+            if (!mItemEntries.hasItemEntry(i)) {
+                return false;
+            }
+
+            final int startLane = mItemEntries.getStartLane(i);
+            if (startLane == Spans.NO_LANE) {
+                return false;
+            }
+
+            final int endLane = Math.min(startLane + getLaneSpanForPosition(i), laneCount);
+            for (int lane = startLane; lane < endLane; lane++) {
+                if (mLastPositionInLane[lane] == RecyclerView.NO_POSITION) {
+                    mLastPositionInLane[lane] = i;
+                    remainingLanes--;
+                }
+            }
+        }
+
+        mHasLastPositionInLane = true;
+        return true;
+    }
+
+    /**
+     * Caches the spacing flags in the item entry, if there's one, so that
+     * they are computed once per placed item instead of on every layout.
+     */
+    private void ensureSpacingFlags(int position) {
+        if (!mItemEntries.hasItemEntry(position) || mItemEntries.hasSpacingFlags(position)) {
+            return;
+        }
+
+        mItemEntries.setSpacingFlags(position, computeFirstRow(position),
+                computeSecondLane(position));
+    }
+
+    private boolean computeFirstRow(int position) {
+        final int laneCount = getLaneCount();
+        if (position >= laneCount) {
+            return false;
+        }
+
+        // Bounded by the lane count, see the check above.
+        int count = 0;
+        for (int i = 0; i < position; i++) {
+            count += getLaneSpanForPosition(i);
+            if (count >= laneCount) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean computeSecondLane(int position) {
+        getLaneForPosition(mSpacingLaneInfo, position, DIRECTION_END);
+        final int lane = mSpacingLaneInfo.startLane;
+        if (lane == 0 || position == 0) {
+            return false;
+        }
+
+        // Look for the closest item before this one in a different lane. Items
+        // in the same lane share the same result so the walk stops at the
+        // first one that has it cached, usually the previous position.
+        int previousPosition = position - 1;
+        int previousLane = Spans.NO_LANE;
+        while (previousPosition >= 0) {
+            if (mItemEntries.hasSpacingFlags(previousPosition)) {
+                final int cachedLane = mItemEntries.getStartLane(previousPosition);
+                if (cachedLane == lane) {
+                    return mItemEntries.isSecondLane(previousPosition);
+                }
+            }
+
+            getLaneForPosition(mSpacingLaneInfo, previousPosition, DIRECTION_END);
+            previousLane = mSpacingLaneInfo.startLane;
+            if (previousLane != lane) {
+                break;
+            }
+
+            previousPosition--;
+        }
+
+        if (previousPosition < 0 || previousLane != 0) {
+            return false;
+        }
+
+        return (lane == previousLane + getLaneSpanForPosition(previousPosition));
+    }
+
+    void cacheChildLaneAndSpan(View child, int direction) {
         // Do nothing by default.
-        return null;
     }
 
-    ItemEntry cacheChildFrame(View child, Rect childFrame) {
+    /**
+     * Caches the given frame for the child, if needed. Returns the position of
+     * the item entry holding the child's span margins or
+     * {@link RecyclerView#NO_POSITION} if there's none.
+     */
+    int cacheChildFrame(View child, Rect childFrame) {
         // Do nothing by default.
-        return null;
+        return RecyclerView.NO_POSITION;
     }
 
     @Override
@@ -600,14 +912,7 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
                 }
             }
 
-            final int itemEntriesCount = in.readInt();
-            if (itemEntriesCount > 0) {
-                itemEntries = new ItemEntries();
-                for (int i = 0; i < itemEntriesCount; i++) {
-                    final ItemEntry entry = in.readParcelable(getClass().getClassLoader());
-                    itemEntries.restoreItemEntry(i, entry);
-                }
-            }
+            itemEntries = new ItemEntries(in);
         }
 
         @Override
@@ -624,11 +929,10 @@ public abstract class BaseLayoutManager extends TwoWayLayoutManager {
                 lanes[i].writeToParcel(out, Rect.PARCELABLE_WRITE_RETURN_VALUE);
             }
 
-            final int itemEntriesCount = (itemEntries != null ? itemEntries.size() : 0);
-            out.writeInt(itemEntriesCount);
-
-            for (int i = 0; i < itemEntriesCount; i++) {
-                out.writeParcelable(itemEntries.getItemEntry(i), flags);
+            if (itemEntries != null) {
+                itemEntries.writeToParcel(out);
+            } else {
+                out.writeInt(0);
             }
         }
 
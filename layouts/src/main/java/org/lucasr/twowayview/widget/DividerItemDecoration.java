@@ -3,6 +3,7 @@ package org.lucasr.twowayview.widget;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.support.v7.widget.RecyclerView;
@@ -11,10 +12,17 @@ import android.util.AttributeSet;
 import android.view.View;
 import android.view.ViewGroup.MarginLayoutParams;
 
+import java.util.Arrays;
+
 /**
  * {@link android.support.v7.widget.RecyclerView.ItemDecoration} that draws
  * vertical and horizontal dividers between the items of the target
  * {@link android.support.v7.widget.RecyclerView}.
+ *
+ * Dividers are drawables by default, drawn once per child and orientation.
+ * Solid colour dividers, see {@link #DividerItemDecoration(int, int)}, are
+ * instead merged where they line up into a single stroke across a row or
+ * lane, and all of them are drawn with a single call per frame.
  */
 public class DividerItemDecoration extends ItemDecoration {
     private final ItemSpacingOffsets mItemSpacing;
@@ -22,6 +30,9 @@ public class DividerItemDecoration extends ItemDecoration {
     private final Drawable mVerticalDivider;
     private final Drawable mHorizontalDivider;
 
+    // Only set for solid colour dividers.
+    private final SolidDividers mSolidDividers;
+
     public DividerItemDecoration(Context context, AttributeSet attrs) {
         this(context, attrs, 0);
     }
@@ -41,6 +52,7 @@ public class DividerItemDecoration extends ItemDecoration {
         a.recycle();
 
         mItemSpacing = createSpacing(mVerticalDivider, mHorizontalDivider);
+        mSolidDividers = null;
     }
 
     public DividerItemDecoration(Drawable divider) {
@@ -51,6 +63,26 @@ public class DividerItemDecoration extends ItemDecoration {
         mVerticalDivider = verticalDivider;
         mHorizontalDivider = horizontalDivider;
         mItemSpacing = createSpacing(mVerticalDivider, mHorizontalDivider);
+        mSolidDividers = null;
+    }
+
+    /**
+     * Creates solid colour dividers of the given thickness, in pixels, in
+     * both orientations. Instead of drawing a drawable per child, divider
+     * segments that line up are merged and drawn in a single pass.
+     */
+    public DividerItemDecoration(int color, int thickness) {
+        if (thickness < 0) {
+            throw new IllegalArgumentException("Divider thickness must be >= 0");
+        }
+
+        mVerticalDivider = null;
+        mHorizontalDivider = null;
+
+        mItemSpacing = new ItemSpacingOffsets(thickness, thickness);
+        mItemSpacing.setAddSpacingAtEnd(true);
+
+        mSolidDividers = new SolidDividers(color, thickness);
     }
 
     private static ItemSpacingOffsets createSpacing(Drawable verticalDivider,
@@ -82,6 +114,8 @@ public class DividerItemDecoration extends ItemDecoration {
         final int rightWithPadding = parent.getWidth() - parent.getPaddingRight();
         final int bottomWithPadding = parent.getHeight() - parent.getPaddingBottom();
 
+        final SolidDividers solidDividers = mSolidDividers;
+
         final int childCount = parent.getChildCount();
         for (int i = 0; i < childCount; i++) {
             final View child = parent.getChildAt(i);
@@ -104,12 +138,19 @@ public class DividerItemDecoration extends ItemDecoration {
                 final int right = rightWithPadding < childRight
                         ? rightWithPadding
                         : childRight;
+                final int height = (solidDividers != null
+                        ? solidDividers.getThickness()
+                        : mHorizontalDivider.getIntrinsicHeight());
                 final int bottom = parent.getPaddingTop() > childBottom - bottomOffset
                         ? top
-                        : top + mHorizontalDivider.getIntrinsicHeight();
+                        : top + height;
 
-                mHorizontalDivider.setBounds(left, top, right, bottom);
-                mHorizontalDivider.draw(c);
+                if (solidDividers != null) {
+                    solidDividers.addHorizontal(left, top, right, bottom);
+                } else {
+                    mHorizontalDivider.setBounds(left, top, right, bottom);
+                    mHorizontalDivider.draw(c);
+                }
             }
 
             final int rightOffset = childRight - child.getRight() - lp.rightMargin;
@@ -120,21 +161,223 @@ public class DividerItemDecoration extends ItemDecoration {
                 final int top = parent.getPaddingTop() > childTop
                         ? parent.getPaddingTop()
                         : childTop;
+                final int width = (solidDividers != null
+                        ? solidDividers.getThickness()
+                        : mVerticalDivider.getIntrinsicWidth());
                 final int right = parent.getPaddingLeft() > childRight - rightOffset
                         ? left
-                        : left + mVerticalDivider.getIntrinsicWidth();
+                        : left + width;
                 final int bottom = bottomWithPadding < childBottom
                         ? bottomWithPadding
                         : childBottom;
 
-                mVerticalDivider.setBounds(left, top, right, bottom);
-                mVerticalDivider.draw(c);
+                if (solidDividers != null) {
+                    solidDividers.addVertical(left, top, right, bottom);
+                } else {
+                    mVerticalDivider.setBounds(left, top, right, bottom);
+                    mVerticalDivider.draw(c);
+                }
             }
         }
+
+        if (solidDividers != null) {
+            solidDividers.draw(c);
+        }
     }
 
     @Override
     public void getItemOffsets(Rect outRect, int itemPosition, RecyclerView parent) {
         mItemSpacing.getItemOffsets(outRect, itemPosition, parent);
     }
+
+    /**
+     * Collects the solid divider segments of a frame and draws them as
+     * lines with a single drawLines() call. Segments on the same line that
+     * touch or overlap, e.g. the dividers below the items of a grid row,
+     * are merged into a single line first.
+     */
+    private static class SolidDividers {
+        private final int mThickness;
+        private final Paint mPaint = new Paint();
+
+        private final DividerSegments mHorizontalSegments = new DividerSegments();
+        private final DividerSegments mVerticalSegments = new DividerSegments();
+
+        private float[] mPoints = new float[16 * 4];
+
+        public SolidDividers(int color, int thickness) {
+            mThickness = thickness;
+
+            mPaint.setColor(color);
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setStrokeCap(Paint.Cap.BUTT);
+            mPaint.setStrokeWidth(thickness);
+        }
+
+        public int getThickness() {
+            return mThickness;
+        }
+
+        public void addHorizontal(int left, int top, int right, int bottom) {
+            mHorizontalSegments.add(top, bottom, left, right);
+        }
+
+        public void addVertical(int left, int top, int right, int bottom) {
+            mVerticalSegments.add(left, right, top, bottom);
+        }
+
+        public void draw(Canvas c) {
+            final int horizontalCount = mHorizontalSegments.merge();
+            final int verticalCount = mVerticalSegments.merge();
+
+            final int pointCount = (horizontalCount + verticalCount) * 4;
+            if (pointCount == 0) {
+                return;
+            }
+
+            if (pointCount > mPoints.length) {
+                mPoints = new float[Math.max(pointCount, mPoints.length * 2)];
+            }
+
+            int offset = 0;
+            for (int i = 0; i < horizontalCount; i++) {
+                final float center = mHorizontalSegments.getLineCenter(i);
+                mPoints[offset++] = mHorizontalSegments.getRunStart(i);
+                mPoints[offset++] = center;
+                mPoints[offset++] = mHorizontalSegments.getRunEnd(i);
+                mPoints[offset++] = center;
+            }
+
+            for (int i = 0; i < verticalCount; i++) {
+                final float center = mVerticalSegments.getLineCenter(i);
+                mPoints[offset++] = center;
+                mPoints[offset++] = mVerticalSegments.getRunStart(i);
+                mPoints[offset++] = center;
+                mPoints[offset++] = mVerticalSegments.getRunEnd(i);
+            }
+
+            c.drawLines(mPoints, 0, pointCount, mPaint);
+
+            mHorizontalSegments.clear();
+            mVerticalSegments.clear();
+        }
+    }
+
+    /**
+     * Divider segments of one orientation, each stored as its bounds across
+     * the line (line start and end) followed by its bounds along the line
+     * (run start and end).
+     */
+    private static class DividerSegments {
+        private static final int SEGMENT_SIZE = 4;
+
+        private int[] mSegments = new int[16 * SEGMENT_SIZE];
+        private int mCount;
+
+        public void add(int lineStart, int lineEnd, int runStart, int runEnd) {
+            if (lineEnd <= lineStart || runEnd <= runStart) {
+                return;
+            }
+
+            final int offset = mCount * SEGMENT_SIZE;
+            if (offset + SEGMENT_SIZE > mSegments.length) {
+                mSegments = Arrays.copyOf(mSegments, mSegments.length * 2);
+            }
+
+            mSegments[offset] = lineStart;
+            mSegments[offset + 1] = lineEnd;
+            mSegments[offset + 2] = runStart;
+            mSegments[offset + 3] = runEnd;
+            mCount++;
+        }
+
+        public void clear() {
+            mCount = 0;
+        }
+
+        public float getLineCenter(int index) {
+            final int offset = index * SEGMENT_SIZE;
+            return (mSegments[offset] + mSegments[offset + 1]) / 2f;
+        }
+
+        public int getRunStart(int index) {
+            return mSegments[index * SEGMENT_SIZE + 2];
+        }
+
+        public int getRunEnd(int index) {
+            return mSegments[index * SEGMENT_SIZE + 3];
+        }
+
+        /**
+         * Merges the segments on the same line that touch or overlap, in
+         * place. Returns the number of segments left.
+         */
+        public int merge() {
+            sort();
+
+            final int[] segments = mSegments;
+
+            int mergedCount = 0;
+            for (int i = 0; i < mCount; i++) {
+                final int offset = i * SEGMENT_SIZE;
+                final int last = (mergedCount - 1) * SEGMENT_SIZE;
+
+                if (mergedCount > 0
+                        && segments[last] == segments[offset]
+                        && segments[last + 1] == segments[offset + 1]
+                        && segments[offset + 2] <= segments[last + 3]) {
+                    segments[last + 3] = Math.max(segments[last + 3], segments[offset + 3]);
+                } else {
+                    System.arraycopy(segments, offset, segments, mergedCount * SEGMENT_SIZE,
+                            SEGMENT_SIZE);
+                    mergedCount++;
+                }
+            }
+
+            mCount = mergedCount;
+            return mergedCount;
+        }
+
+        /**
+         * Insertion sort by line and run start. Children come mostly in
+         * order already and there are only as many as fit on screen.
+         */
+        private void sort() {
+            final int[] segments = mSegments;
+            for (int i = 1; i < mCount; i++) {
+                final int lineStart = segments[i * SEGMENT_SIZE];
+                final int lineEnd = segments[i * SEGMENT_SIZE + 1];
+                final int runStart = segments[i * SEGMENT_SIZE + 2];
+                final int runEnd = segments[i * SEGMENT_SIZE + 3];
+
+                int j = i - 1;
+                while (j >= 0 && compare(segments, j, lineStart, lineEnd, runStart) > 0) {
+                    System.arraycopy(segments, j * SEGMENT_SIZE,
+                            segments, (j + 1) * SEGMENT_SIZE, SEGMENT_SIZE);
+                    j--;
+                }
+
+                final int offset = (j + 1) * SEGMENT_SIZE;
+                segments[offset] = lineStart;
+                segments[offset + 1] = lineEnd;
+                segments[offset + 2] = runStart;
+                segments[offset + 3] = runEnd;
+            }
+        }
+
+        private static int compare(int[] segments, int index, int lineStart, int lineEnd,
+                                   int runStart) {
+            final int offset = index * SEGMENT_SIZE;
+            if (segments[offset] != lineStart) {
+                return (segments[offset] < lineStart ? -1 : 1);
+            }
+            if (segments[offset + 1] != lineEnd) {
+                return (segments[offset + 1] < lineEnd ? -1 : 1);
+            }
+            if (segments[offset + 2] != runStart) {
+                return (segments[offset + 2] < runStart ? -1 : 1);
+            }
+            return 0;
+        }
+    }
 }
@@ -62,6 +62,11 @@ public class GridLayoutManager extends BaseLayoutManager {
         this.mNumRows = rows;
     }
 
+    @Override
+    boolean supportsFixedItemExtent() {
+        return true;
+    }
+
     @Override
     int getLaneCount() {
         return (isVertical() ? mNumColumns : mNumRows);
@@ -84,11 +89,14 @@ public class GridLayoutManager extends BaseLayoutManager {
             return;
         }
 
-        final View child = recycler.getViewForPosition(position);
-        measureChild(child, DIRECTION_END);
+        int dimension = getItemExtent();
+        if (dimension == 0) {
+            final View child = recycler.getViewForPosition(position);
+            measureChild(child, DIRECTION_END);
 
-        final int dimension =
-                (isVertical() ? getDecoratedMeasuredHeight(child) : getDecoratedMeasuredWidth(child));
+            dimension = (isVertical() ? getDecoratedMeasuredHeight(child) :
+                    getDecoratedMeasuredWidth(child));
+        }
 
         for (int i = lane - 1; i >= 0; i--) {
             spans.offset(i, dimension);
@@ -21,81 +21,666 @@
 
 package org.lucasr.twowayview.widget;
 
-import android.util.SparseArray;
+import android.os.Parcel;
 
-import org.lucasr.twowayview.widget.BaseLayoutManager.ItemEntry;
+import org.lucasr.twowayview.widget.Spans.LaneInfo;
 
+import java.util.Arrays;
+
+/**
+ * Packed store for the per-position layout state of the laned layouts.
+ *
+ * Instead of keeping one object per adapter position, every attribute lives
+ * in its own int column indexed by position. Attributes that fit in 16 bits,
+ * i.e. the lanes and the row and column spans, share a column in pairs, and
+ * the lane epoch shares the flags column. Span margins, which only exist
+ * for items spanning more than one lane, are kept in a single shared pool.
+ * Reading and writing entries never allocates; the columns only grow when a
+ * position beyond the current capacity is written.
+ *
+ * The columns are laid out as a gap buffer: the free slots between the
+ * entries before and after the last insertion or removal point are kept
+ * in place. Shifting entries for adapter insertions and removals only moves
+ * the gap, so its cost depends on the number of added or removed items and
+ * on the distance to the previous change, not on the number of cached
+ * entries after the change.
+ *
+ * Lane invalidation is lazy. Invalidating the lanes after a position only
+ * records the position together with a new epoch. Every entry remembers
+ * the epoch its lane was assigned in, and an entry is found to be stale
+ * the first time it is read after an invalidation covering it.
+ *
+ * Entries can also cache the spacing flags used by
+ * {@link ItemSpacingOffsets}, see {@link BaseLayoutManager#isFirstRowPosition(int)}.
+ * They depend on the lanes of the entries before them and are dropped
+ * together with the entry's lane.
+ */
 class ItemEntries {
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int NO_MARGINS = -1;
+
+    private static final int FLAG_PRESENT = 0x1;
+    private static final int FLAG_HAS_SPACING = 0x4;
+    private static final int FLAG_FIRST_ROW = 0x8;
+    private static final int FLAG_SECOND_LANE = 0x10;
+    private static final int SPACING_FLAGS = FLAG_HAS_SPACING | FLAG_FIRST_ROW | FLAG_SECOND_LANE;
+    private static final int FLAGS_MASK = 0xFF;
+
+    // The epoch takes the flags column bits above the flags.
+    private static final int EPOCH_SHIFT = 8;
+    private static final int MAX_EPOCH = (1 << (32 - EPOCH_SHIFT)) - 1;
+
+    // Start and anchor lanes, row and column spans.
+    private static final int COLUMN_FLAGS = 0;
+    private static final int COLUMN_LANES = 1;
+    private static final int COLUMN_SPAN = 2;
+    private static final int COLUMN_WIDTH = 3;
+    private static final int COLUMN_HEIGHT = 4;
+    private static final int COLUMN_SPANS = 5;
+    private static final int COLUMN_MARGINS = 6;
+    private static final int COLUMN_COUNT = 7;
+
+    private static final int NO_LANES = pack(Spans.NO_LANE, Spans.NO_LANE);
+
+    private static final int MAX_PENDING_INVALIDATIONS = 32;
+
+    private final int[][] mColumns = new int[COLUMN_COUNT][];
+    private int mSize;
+
+    // Logical positions from mGapStart onwards are stored mGapLength slots
+    // further in the columns. Slots after the last stored entry are always
+    // kept cleared.
+    private int mGapStart;
+    private int mGapLength;
+
+    // Each margin block is stored as [count, margin0, margin1, ...]. The
+    // margins column holds the offset of the block header in the pool.
+    private int[] mMarginPool;
+    private int mMarginPoolSize;
+    private int mMarginPoolGarbage;
+
+    // Pending lane invalidations, ordered by epoch. Positions are kept in
+    // non-decreasing order as a newer invalidation supersedes any older one
+    // at the same or a later position.
+    private final int[] mInvalidationEpochs = new int[MAX_PENDING_INVALIDATIONS];
+    private final int[] mInvalidationPositions = new int[MAX_PENDING_INVALIDATIONS];
+    private int mInvalidationCount;
+    private int mEpoch;
+
+    // Bumped whenever the lane or span of any entry might have changed.
+    private int mLaneVersion;
+
+    public ItemEntries() {
+        for (int i = 0; i < COLUMN_COUNT; i++) {
+            mColumns[i] = new int[MIN_CAPACITY];
+        }
+
+        clearRange(0, MIN_CAPACITY);
+        mMarginPool = new int[MIN_CAPACITY];
+    }
+
+    public ItemEntries(Parcel in) {
+        this();
+
+        final int size = in.readInt();
+        ensureCapacity(size);
+        mSize = size;
+        mGapStart = size;
+
+        for (int position = 0; position < size; position++) {
+            for (int column = 0; column < COLUMN_MARGINS; column++) {
+                mColumns[column][position] = in.readInt();
+            }
+
+            final int marginCount = in.readInt();
+            for (int i = 0; i < marginCount; i++) {
+                setSpanMargin(position, i, in.readInt(), marginCount);
+            }
+        }
+    }
 
-    private SparseArray<ItemEntry> mItemEntries = new SparseArray<ItemEntry>();
+    public void writeToParcel(Parcel out) {
+        flushInvalidations();
 
-    public ItemEntry getItemEntry(int position) {
-        return mItemEntries.get(position);
+        // Trailing positions might have lost their entry, skip them.
+        int size = mSize;
+        while (size > 0 && !hasItemEntry(size - 1)) {
+            size--;
+        }
+
+        out.writeInt(size);
+
+        for (int position = 0; position < size; position++) {
+            final int index = index(position);
+            out.writeInt(mColumns[COLUMN_FLAGS][index] & FLAG_PRESENT);
+            for (int column = COLUMN_FLAGS + 1; column < COLUMN_MARGINS; column++) {
+                out.writeInt(mColumns[column][index]);
+            }
+
+            final int offset = mColumns[COLUMN_MARGINS][index];
+            final int marginCount = (offset != NO_MARGINS ? mMarginPool[offset] : 0);
+            out.writeInt(marginCount);
+
+            for (int i = 0; i < marginCount; i++) {
+                out.writeInt(mMarginPool[offset + 1 + i]);
+            }
+        }
+    }
+
+    /**
+     * Packs two values in the range of a short into an int.
+     */
+    private static int pack(int high, int low) {
+        if (high != (short) high || low != (short) low) {
+            throw new IllegalArgumentException("Lanes and spans must fit in 16 bits: "
+                    + high + ", " + low);
+        }
+
+        return (high << 16) | (low & 0xFFFF);
+    }
+
+    private static int getHigh(int packed) {
+        return (packed >> 16);
     }
 
-    public void putItemEntry(int position, ItemEntry entry) {
-        mItemEntries.put(position,entry);
+    private static int getLow(int packed) {
+        return (short) packed;
     }
 
-    public void restoreItemEntry(int position, ItemEntry entry) {
-        putItemEntry(position, entry);
+    private int index(int position) {
+        return (position < mGapStart ? position : position + mGapLength);
     }
 
+    private void ensureCapacity(int capacity) {
+        final int oldCapacity = mColumns[0].length;
+        if (capacity <= oldCapacity) {
+            return;
+        }
+
+        final int newCapacity = Math.max(capacity, oldCapacity + (oldCapacity >> 1));
+        for (int i = 0; i < COLUMN_COUNT; i++) {
+            mColumns[i] = Arrays.copyOf(mColumns[i], newCapacity);
+        }
+
+        clearRange(oldCapacity, newCapacity);
+    }
+
+    /**
+     * Grows the gap to at least the given length, reallocating the columns.
+     */
+    private void ensureGapLength(int gapLength) {
+        if (mGapLength >= gapLength) {
+            return;
+        }
+
+        // Size the new gap after the slots in use rather than the current
+        // capacity, which might be left over from before a clear().
+        final int slotCount = mSize + mGapLength;
+        final int extra = Math.max(gapLength - mGapLength, Math.max(MIN_CAPACITY, slotCount >> 1));
+        final int newCapacity = slotCount + extra;
+        final int newGapLength = mGapLength + extra;
+
+        final int tailStart = mGapStart + mGapLength;
+        final int tailCount = mSize - mGapStart;
+
+        for (int i = 0; i < COLUMN_COUNT; i++) {
+            final int[] oldColumn = mColumns[i];
+            final int[] newColumn = new int[newCapacity];
+
+            System.arraycopy(oldColumn, 0, newColumn, 0, mGapStart);
+            System.arraycopy(oldColumn, tailStart, newColumn, mGapStart + newGapLength, tailCount);
+
+            mColumns[i] = newColumn;
+        }
+
+        clearRange(mGapStart, mGapStart + newGapLength);
+
+        mGapLength = newGapLength;
+    }
 
     /**
-     * From android.util.SparseArray:
-     *
-     * The keys corresponding to indices in ascending order are guaranteed to be in ascending
-     * order, e.g., keyAt(0) will return the smallest key and keyAt(size()-1) will return the
-     * largest key.
+     * Moves the gap so that it starts right before the given position.
      */
+    private void moveGap(int position) {
+        if (position == mGapStart) {
+            return;
+        }
+
+        if (mGapLength > 0) {
+            if (position < mGapStart) {
+                final int count = mGapStart - position;
+                for (int i = 0; i < COLUMN_COUNT; i++) {
+                    System.arraycopy(mColumns[i], position, mColumns[i], position + mGapLength,
+                            count);
+                }
+            } else {
+                final int count = position - mGapStart;
+                for (int i = 0; i < COLUMN_COUNT; i++) {
+                    System.arraycopy(mColumns[i], mGapStart + mGapLength, mColumns[i], mGapStart,
+                            count);
+                }
+            }
+        }
+
+        mGapStart = position;
+    }
+
+    private void clearRange(int start, int end) {
+        Arrays.fill(mColumns[COLUMN_FLAGS], start, end, 0);
+        Arrays.fill(mColumns[COLUMN_LANES], start, end, NO_LANES);
+        Arrays.fill(mColumns[COLUMN_SPAN], start, end, 0);
+        Arrays.fill(mColumns[COLUMN_WIDTH], start, end, 0);
+        Arrays.fill(mColumns[COLUMN_HEIGHT], start, end, 0);
+        Arrays.fill(mColumns[COLUMN_SPANS], start, end, 0);
+        Arrays.fill(mColumns[COLUMN_MARGINS], start, end, NO_MARGINS);
+    }
+
+    private int get(int column, int position) {
+        return (position >= 0 && position < mSize ? mColumns[column][index(position)] : 0);
+    }
+
+    private void set(int column, int position, int value) {
+        mColumns[column][index(position)] = value;
+    }
+
+    public boolean hasItemEntry(int position) {
+        return ((get(COLUMN_FLAGS, position) & FLAG_PRESENT) != 0);
+    }
+
+    private void ensureSize(int position) {
+        if (position < mSize) {
+            return;
+        }
+
+        if (mGapStart == mSize && mGapLength > 0) {
+            // A gap left at the end would sit between the existing and the
+            // appended entries, turn it into regular free space instead.
+            clearRange(mGapStart, mGapStart + mGapLength);
+            mGapLength = 0;
+        }
+
+        ensureCapacity(index(position) + 1);
+        mSize = position + 1;
+    }
+
+    public void putItemEntry(int position, int startLane, int anchorLane) {
+        mLaneVersion++;
+        ensureSize(position);
+        releaseSpanMargins(position);
+
+        set(COLUMN_FLAGS, position, FLAG_PRESENT | (mEpoch << EPOCH_SHIFT));
+        set(COLUMN_LANES, position, pack(startLane, anchorLane));
+        set(COLUMN_SPAN, position, 0);
+        set(COLUMN_WIDTH, position, 0);
+        set(COLUMN_HEIGHT, position, 0);
+        set(COLUMN_SPANS, position, 0);
+    }
+
+    public void getLane(int position, LaneInfo outInfo) {
+        if (!hasItemEntry(position)) {
+            outInfo.setUndefined();
+            return;
+        }
+
+        validateLane(position);
+
+        final int lanes = get(COLUMN_LANES, position);
+        outInfo.set(getHigh(lanes), getLow(lanes));
+    }
+
+    public int getStartLane(int position) {
+        if (!hasItemEntry(position)) {
+            return Spans.NO_LANE;
+        }
+
+        validateLane(position);
+        return getHigh(get(COLUMN_LANES, position));
+    }
 
+    public void setLane(int position, LaneInfo laneInfo) {
+        validateLane(position);
+
+        // Re-attached children usually keep their lane, in which case the
+        // lane version and the cached spacing flags are still valid.
+        final int lanes = pack(laneInfo.startLane, laneInfo.anchorLane);
+        if (get(COLUMN_LANES, position) == lanes) {
+            return;
+        }
+
+        mLaneVersion++;
+        set(COLUMN_LANES, position, lanes);
+        setEpoch(position, mEpoch);
+        clearSpacingFlags(position);
+    }
+
+    public boolean hasSpacingFlags(int position) {
+        if (!hasItemEntry(position)) {
+            return false;
+        }
+
+        validateLane(position);
+        return ((get(COLUMN_FLAGS, position) & FLAG_HAS_SPACING) != 0);
+    }
+
+    public boolean isFirstRow(int position) {
+        return ((get(COLUMN_FLAGS, position) & FLAG_FIRST_ROW) != 0);
+    }
+
+    public boolean isSecondLane(int position) {
+        return ((get(COLUMN_FLAGS, position) & FLAG_SECOND_LANE) != 0);
+    }
+
+    public void setSpacingFlags(int position, boolean firstRow, boolean secondLane) {
+        final int index = index(position);
+
+        int flags = mColumns[COLUMN_FLAGS][index] | FLAG_HAS_SPACING;
+        flags = (firstRow ? flags | FLAG_FIRST_ROW : flags & ~FLAG_FIRST_ROW);
+        flags = (secondLane ? flags | FLAG_SECOND_LANE : flags & ~FLAG_SECOND_LANE);
+
+        mColumns[COLUMN_FLAGS][index] = flags;
+    }
+
+    private void clearSpacingFlags(int position) {
+        mColumns[COLUMN_FLAGS][index(position)] &= ~SPACING_FLAGS;
+    }
+
+    public int getSpan(int position) {
+        return get(COLUMN_SPAN, position);
+    }
+
+    public void setSpan(int position, int span) {
+        if (get(COLUMN_SPAN, position) == span) {
+            return;
+        }
+
+        mLaneVersion++;
+        set(COLUMN_SPAN, position, span);
+    }
+
+    public int getWidth(int position) {
+        return get(COLUMN_WIDTH, position);
+    }
+
+    public int getHeight(int position) {
+        return get(COLUMN_HEIGHT, position);
+    }
+
+    public void setSize(int position, int width, int height) {
+        set(COLUMN_WIDTH, position, width);
+        set(COLUMN_HEIGHT, position, height);
+    }
+
+    public int getColSpan(int position) {
+        return getHigh(get(COLUMN_SPANS, position));
+    }
+
+    public int getRowSpan(int position) {
+        return getLow(get(COLUMN_SPANS, position));
+    }
+
+    public void setSpans(int position, int colSpan, int rowSpan) {
+        set(COLUMN_SPANS, position, pack(colSpan, rowSpan));
+    }
+
+    public boolean hasSpanMargins(int position) {
+        if (position < 0 || position >= mSize) {
+            return false;
+        }
+
+        validateLane(position);
+        return (mColumns[COLUMN_MARGINS][index(position)] != NO_MARGINS);
+    }
+
+    public int getSpanMargin(int position, int index) {
+        if (!hasSpanMargins(position)) {
+            return 0;
+        }
+
+        return mMarginPool[get(COLUMN_MARGINS, position) + 1 + index];
+    }
+
+    public void setSpanMargin(int position, int index, int margin, int span) {
+        validateLane(position);
+
+        int offset = get(COLUMN_MARGINS, position);
+        if (offset == NO_MARGINS) {
+            offset = allocateSpanMargins(span);
+            set(COLUMN_MARGINS, position, offset);
+        }
+
+        mMarginPool[offset + 1 + index] = margin;
+    }
+
+    private int allocateSpanMargins(int span) {
+        final int blockSize = span + 1;
+
+        if (mMarginPoolGarbage > MIN_CAPACITY && mMarginPoolGarbage > mMarginPoolSize / 2) {
+            compactSpanMargins();
+        }
+
+        if (mMarginPoolSize + blockSize > mMarginPool.length) {
+            final int newLength = Math.max(mMarginPoolSize + blockSize,
+                    mMarginPool.length + (mMarginPool.length >> 1));
+            mMarginPool = Arrays.copyOf(mMarginPool, newLength);
+        }
+
+        final int offset = mMarginPoolSize;
+        mMarginPool[offset] = span;
+        Arrays.fill(mMarginPool, offset + 1, offset + blockSize, 0);
+        mMarginPoolSize += blockSize;
+
+        return offset;
+    }
+
+    private void releaseSpanMargins(int position) {
+        final int index = index(position);
+        final int offset = mColumns[COLUMN_MARGINS][index];
+        if (offset == NO_MARGINS) {
+            return;
+        }
+
+        mMarginPoolGarbage += mMarginPool[offset] + 1;
+        mColumns[COLUMN_MARGINS][index] = NO_MARGINS;
+    }
+
+    private void compactSpanMargins() {
+        final int[] oldPool = mMarginPool;
+        final int[] offsets = mColumns[COLUMN_MARGINS];
+
+        mMarginPool = new int[Math.max(MIN_CAPACITY, mMarginPoolSize - mMarginPoolGarbage)];
+        mMarginPoolSize = 0;
+        mMarginPoolGarbage = 0;
+
+        for (int position = 0; position < mSize; position++) {
+            final int index = index(position);
+            final int offset = offsets[index];
+            if (offset == NO_MARGINS) {
+                continue;
+            }
+
+            final int blockSize = oldPool[offset] + 1;
+            System.arraycopy(oldPool, offset, mMarginPool, mMarginPoolSize, blockSize);
+            offsets[index] = mMarginPoolSize;
+            mMarginPoolSize += blockSize;
+        }
+    }
+
+    private int getEpoch(int position) {
+        return (get(COLUMN_FLAGS, position) >>> EPOCH_SHIFT);
+    }
+
+    private void setEpoch(int position, int epoch) {
+        final int index = index(position);
+        mColumns[COLUMN_FLAGS][index] =
+                (mColumns[COLUMN_FLAGS][index] & FLAGS_MASK) | (epoch << EPOCH_SHIFT);
+    }
+
+    private void invalidateLane(int position) {
+        set(COLUMN_LANES, position, NO_LANES);
+        releaseSpanMargins(position);
+        clearSpacingFlags(position);
+    }
+
+    /**
+     * Returns a counter that changes whenever entries are added, moved or
+     * have their lanes or spans changed. Useful to cache data derived from
+     * the lanes of many entries.
+     */
+    public int getLaneVersion() {
+        return mLaneVersion;
+    }
+
+    /**
+     * Returns the number of positions covered by the store i.e. the
+     * last position with an entry plus one.
+     */
     public int size() {
-        return (mItemEntries.size()==0 ? 0 : mItemEntries.keyAt(mItemEntries.size()-1));
+        return mSize;
+    }
+
+    /**
+     * Returns whether the lane of the entry at the given position was
+     * assigned before an invalidation covering the position.
+     */
+    private boolean isLaneStale(int position) {
+        if (mInvalidationCount == 0 || position < mInvalidationPositions[0]) {
+            return false;
+        }
+
+        // Find the oldest invalidation that happened after the lane was
+        // assigned. Being the oldest, it also has the lowest position.
+        final int epoch = getEpoch(position);
+        int low = 0;
+        int high = mInvalidationCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mInvalidationEpochs[mid] > epoch) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+
+        return (low < mInvalidationCount && position >= mInvalidationPositions[low]);
+    }
+
+    private void validateLane(int position) {
+        if (isLaneStale(position)) {
+            invalidateLane(position);
+            setEpoch(position, mEpoch);
+        }
+    }
+
+    /**
+     * Applies all pending invalidations to the entries they cover.
+     */
+    private void flushInvalidations() {
+        if (mInvalidationCount == 0) {
+            return;
+        }
+
+        for (int i = mInvalidationPositions[0]; i < mSize; i++) {
+            if (hasItemEntry(i)) {
+                validateLane(i);
+            }
+        }
+
+        mInvalidationCount = 0;
     }
 
     public void invalidateItemLanesAfter(int position) {
-        if (mItemEntries.size()==0 || position > mItemEntries.keyAt(mItemEntries.size()-1)) {
+        mLaneVersion++;
+        position = Math.max(0, position);
+        if (position >= mSize) {
             return;
         }
 
-        for (int i = position; i < mItemEntries.size(); i++) {
-            final ItemEntry entry = mItemEntries.valueAt(i);
-            entry.invalidateLane();
+        while (mInvalidationCount > 0 &&
+               mInvalidationPositions[mInvalidationCount - 1] >= position) {
+            mInvalidationCount--;
+        }
+
+        if (mInvalidationCount == MAX_PENDING_INVALIDATIONS) {
+            flushInvalidations();
+        }
+
+        if (mEpoch == MAX_EPOCH) {
+            flushInvalidations();
+
+            final int[] flags = mColumns[COLUMN_FLAGS];
+            for (int i = 0; i < flags.length; i++) {
+                flags[i] &= FLAGS_MASK;
+            }
+            mEpoch = 0;
         }
+
+        mEpoch++;
+        mInvalidationEpochs[mInvalidationCount] = mEpoch;
+        mInvalidationPositions[mInvalidationCount] = position;
+        mInvalidationCount++;
     }
 
     public void clear() {
-        mItemEntries.clear();
+        mLaneVersion++;
+        clearRange(0, mSize + mGapLength);
+        mSize = 0;
+        mGapStart = 0;
+        mGapLength = 0;
+
+        mMarginPoolSize = 0;
+        mMarginPoolGarbage = 0;
+
+        mInvalidationCount = 0;
+        mEpoch = 0;
     }
 
     void offsetForRemoval(int positionStart, int itemCount) {
+        mLaneVersion++;
+        if (positionStart >= mSize) {
+            return;
+        }
 
-        for(int n = 0; n < (mItemEntries.size() - positionStart - itemCount); n++) {
-
-            int actualPosition = positionStart+itemCount+n;
-            int movedPosition = positionStart+n;
+        final int removedCount = Math.min(positionStart + itemCount, mSize) - positionStart;
+        for (int i = positionStart; i < positionStart + removedCount; i++) {
+            releaseSpanMargins(i);
+        }
 
-            ItemEntry temp = mItemEntries.get(actualPosition);
-            mItemEntries.remove(actualPosition);
-            mItemEntries.put(movedPosition, temp);
+        // The removed entries simply become part of the gap.
+        moveGap(positionStart);
+        mGapLength += removedCount;
+        mSize -= removedCount;
 
+        // Entries past the removed range move back, so do the invalidations
+        // covering them. Invalidations never move before the removed range.
+        for (int i = 0; i < mInvalidationCount; i++) {
+            final int invalidPosition = mInvalidationPositions[i];
+            if (invalidPosition > positionStart) {
+                mInvalidationPositions[i] =
+                        Math.max(positionStart, invalidPosition - removedCount);
+            }
         }
-
     }
 
     void offsetForAddition(int positionStart, int itemCount) {
+        mLaneVersion++;
+        if (positionStart >= mSize) {
+            return;
+        }
 
-        for(int n = 0; n < itemCount; n++) {
-
-            int actualPosition = positionStart+n;
-            int movedPosition = positionStart+itemCount+n;
+        moveGap(positionStart);
+        ensureGapLength(itemCount);
 
-            ItemEntry temp = mItemEntries.get(actualPosition);
-            mItemEntries.remove(actualPosition);
-            mItemEntries.put(movedPosition, temp);
+        // Take the new entries from the start of the gap.
+        clearRange(mGapStart, mGapStart + itemCount);
+        mGapStart += itemCount;
+        mGapLength -= itemCount;
+        mSize += itemCount;
 
+        for (int i = 0; i < mInvalidationCount; i++) {
+            if (mInvalidationPositions[i] >= positionStart) {
+                mInvalidationPositions[i] += itemCount;
+            }
         }
-
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import java.util.Arrays;
+
+/**
+ * Extents of the laid out items along the scrolling direction, weighted by
+ * their lane span, see {@link BaseLayoutManager#getOffsetForPosition(int)}.
+ *
+ * Extents take a single int per slot. Slots are grouped in blocks of
+ * {@link #BLOCK_SIZE} and a Fenwick tree over the blocks holds the sum and
+ * the number of known extents in each of them. This gives the total extent
+ * before any position in O(log n) plus a scan of at most one block, while
+ * the trees only add a fraction of a byte per position.
+ *
+ * Like {@link ItemEntries}, the slots are laid out as a gap buffer. Gap
+ * slots hold no extent, so they don't count in the trees. Adapter
+ * insertions and removals only move the gap, updating the trees once per
+ * block the moved extents leave or enter, so their cost depends on the
+ * number of added or removed items and on the distance to the previous
+ * change, not on the number of cached extents.
+ *
+ * Extents are kept apart from {@link ItemEntries} so that layouts which
+ * don't need per-position lane state, e.g. lists, don't pay for it. They
+ * are not saved into a parcel.
+ */
+class ItemExtents {
+    static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_SHIFT = 6;
+
+    private static final int MIN_CAPACITY = BLOCK_SIZE;
+
+    // Holds the extent plus one, so that 0 marks an unknown extent. Gap
+    // slots and slots after the last position are always 0.
+    private int[] mExtents = new int[MIN_CAPACITY];
+    private int mSize;
+
+    // Positions from mGapStart onwards are stored mGapLength slots further.
+    private int mGapStart;
+    private int mGapLength;
+
+    private long[] mBlockExtentTree = new long[MIN_CAPACITY / BLOCK_SIZE + 1];
+    private int[] mBlockCountTree = new int[MIN_CAPACITY / BLOCK_SIZE + 1];
+    private long mTotalExtent;
+    private int mExtentCount;
+
+    // Pending tree updates for a single block, see addToBlock().
+    private int mPendingBlock = -1;
+    private long mPendingExtent;
+    private int mPendingCount;
+
+    private int getBlockCount() {
+        return mExtents.length >> BLOCK_SHIFT;
+    }
+
+    private int index(int position) {
+        return (position < mGapStart ? position : position + mGapLength);
+    }
+
+    private int getSlotCount() {
+        return mSize + mGapLength;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mExtents.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, mExtents.length + (mExtents.length >> 1));
+        newCapacity = (newCapacity + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1);
+
+        mExtents = Arrays.copyOf(mExtents, newCapacity);
+        rebuildTrees();
+    }
+
+    /**
+     * Grows the gap to at least the given length, reallocating the slots.
+     */
+    private void ensureGapLength(int gapLength) {
+        if (mGapLength >= gapLength) {
+            return;
+        }
+
+        // Size the new gap after the slots in use rather than the current
+        // capacity, which might be left over from before a clear().
+        final int slotCount = getSlotCount();
+        final int extra = Math.max(gapLength - mGapLength, Math.max(MIN_CAPACITY, slotCount >> 1));
+        final int newCapacity = (slotCount + extra + BLOCK_SIZE - 1) & ~(BLOCK_SIZE - 1);
+        final int newGapLength = newCapacity - mSize;
+
+        final int tailStart = mGapStart + mGapLength;
+        final int tailCount = mSize - mGapStart;
+
+        final int[] extents = new int[newCapacity];
+        System.arraycopy(mExtents, 0, extents, 0, mGapStart);
+        System.arraycopy(mExtents, tailStart, extents, mGapStart + newGapLength, tailCount);
+
+        mExtents = extents;
+        mGapLength = newGapLength;
+
+        rebuildTrees();
+    }
+
+    /**
+     * Moves the gap so that it starts right before the given position.
+     */
+    private void moveGap(int position) {
+        if (position == mGapStart) {
+            return;
+        }
+
+        if (mGapLength > 0) {
+            if (position < mGapStart) {
+                final int count = mGapStart - position;
+                moveSlots(position, position + mGapLength, count);
+
+                // The vacated slots become part of the gap.
+                Arrays.fill(mExtents, position, position + Math.min(count, mGapLength), 0);
+            } else {
+                final int count = position - mGapStart;
+                final int gapEnd = mGapStart + mGapLength;
+                moveSlots(gapEnd, mGapStart, count);
+
+                Arrays.fill(mExtents, Math.max(position, gapEnd), position + mGapLength, 0);
+            }
+        }
+
+        mGapStart = position;
+    }
+
+    /**
+     * Copies the given slots, moving their extents between blocks in the
+     * trees.
+     */
+    private void moveSlots(int from, int to, int count) {
+        for (int i = 0; i < count; i++) {
+            final int value = mExtents[from + i];
+            if (value != 0 && ((from + i) >> BLOCK_SHIFT) != ((to + i) >> BLOCK_SHIFT)) {
+                addToBlock(from + i, -(value - 1), -1);
+            }
+        }
+        flushBlock();
+
+        for (int i = 0; i < count; i++) {
+            final int value = mExtents[from + i];
+            if (value != 0 && ((from + i) >> BLOCK_SHIFT) != ((to + i) >> BLOCK_SHIFT)) {
+                addToBlock(to + i, value - 1, 1);
+            }
+        }
+        flushBlock();
+
+        System.arraycopy(mExtents, from, mExtents, to, count);
+    }
+
+    /**
+     * Accumulates a change to the block of the given slot, the trees are
+     * only updated once the changes move on to another block.
+     */
+    private void addToBlock(int slot, long extentDelta, int countDelta) {
+        final int block = slot >> BLOCK_SHIFT;
+        if (block != mPendingBlock) {
+            flushBlock();
+            mPendingBlock = block;
+        }
+
+        mPendingExtent += extentDelta;
+        mPendingCount += countDelta;
+    }
+
+    private void flushBlock() {
+        if (mPendingBlock != -1) {
+            updateTrees(mPendingBlock, mPendingExtent, mPendingCount);
+        }
+
+        mPendingBlock = -1;
+        mPendingExtent = 0;
+        mPendingCount = 0;
+    }
+
+    private void updateTrees(int block, long extentDelta, int countDelta) {
+        if (extentDelta == 0 && countDelta == 0) {
+            return;
+        }
+
+        for (int i = block + 1; i < mBlockExtentTree.length; i += (i & -i)) {
+            mBlockExtentTree[i] += extentDelta;
+            mBlockCountTree[i] += countDelta;
+        }
+
+        mTotalExtent += extentDelta;
+        mExtentCount += countDelta;
+    }
+
+    private void rebuildTrees() {
+        final int blockCount = getBlockCount();
+        if (mBlockExtentTree.length != blockCount + 1) {
+            mBlockExtentTree = new long[blockCount + 1];
+            mBlockCountTree = new int[blockCount + 1];
+        } else {
+            Arrays.fill(mBlockExtentTree, 0);
+            Arrays.fill(mBlockCountTree, 0);
+        }
+
+        mTotalExtent = 0;
+        mExtentCount = 0;
+
+        final int slotCount = getSlotCount();
+        for (int slot = 0; slot < slotCount; slot++) {
+            final int value = mExtents[slot];
+            if (value != 0) {
+                final int block = (slot >> BLOCK_SHIFT) + 1;
+                mBlockExtentTree[block] += value - 1;
+                mBlockCountTree[block]++;
+
+                mTotalExtent += value - 1;
+                mExtentCount++;
+            }
+        }
+
+        for (int i = 1; i <= blockCount; i++) {
+            final int parent = i + (i & -i);
+            if (parent <= blockCount) {
+                mBlockExtentTree[parent] += mBlockExtentTree[i];
+                mBlockCountTree[parent] += mBlockCountTree[i];
+            }
+        }
+    }
+
+    public boolean hasExtent(int position) {
+        return (position >= 0 && position < mSize && mExtents[index(position)] != 0);
+    }
+
+    public int getExtent(int position) {
+        return (hasExtent(position) ? mExtents[index(position)] - 1 : 0);
+    }
+
+    /**
+     * Sets the extent of the item at the given position along the scrolling
+     * direction, multiplied by its lane span.
+     */
+    public void setExtent(int position, int extent) {
+        if (position >= mSize) {
+            if (mGapStart == mSize) {
+                // A gap left at the end would sit between the existing and
+                // the appended positions, its slots simply become unknown
+                // extents instead.
+                mGapLength = 0;
+            }
+
+            ensureCapacity(index(position) + 1);
+            mSize = position + 1;
+        }
+
+        final int slot = index(position);
+        final int oldValue = mExtents[slot];
+        if (oldValue == 0) {
+            updateTrees(slot >> BLOCK_SHIFT, extent, 1);
+        } else if (oldValue - 1 != extent) {
+            updateTrees(slot >> BLOCK_SHIFT, extent - (oldValue - 1), 0);
+        }
+
+        mExtents[slot] = extent + 1;
+    }
+
+    /**
+     * Returns the sum of the known extents before the given position.
+     */
+    public long getExtentBefore(int position) {
+        // Gap slots hold no extent, so they can be summed along.
+        final int end = index(Math.max(0, Math.min(position, mSize)));
+        final int block = end >> BLOCK_SHIFT;
+
+        long extent = 0;
+        for (int i = block; i > 0; i -= (i & -i)) {
+            extent += mBlockExtentTree[i];
+        }
+
+        for (int i = block << BLOCK_SHIFT; i < end; i++) {
+            if (mExtents[i] != 0) {
+                extent += mExtents[i] - 1;
+            }
+        }
+
+        return extent;
+    }
+
+    /**
+     * Returns the number of known extents before the given position.
+     */
+    public int getExtentCountBefore(int position) {
+        final int end = index(Math.max(0, Math.min(position, mSize)));
+        final int block = end >> BLOCK_SHIFT;
+
+        int count = 0;
+        for (int i = block; i > 0; i -= (i & -i)) {
+            count += mBlockCountTree[i];
+        }
+
+        for (int i = block << BLOCK_SHIFT; i < end; i++) {
+            if (mExtents[i] != 0) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of positions stored within the given blocks, i.e.
+     * their slots minus the ones in the gap or after the last position.
+     */
+    private int countPositions(int startBlock, int endBlock) {
+        final int slotCount = getSlotCount();
+        final int start = Math.min(startBlock << BLOCK_SHIFT, slotCount);
+        final int end = Math.min(endBlock << BLOCK_SHIFT, slotCount);
+
+        final int gapSlots = Math.min(end, mGapStart + mGapLength) - Math.max(start, mGapStart);
+
+        return (end - start) - Math.max(0, gapSlots);
+    }
+
+    /**
+     * Returns the first position whose end is past the given extent, counted
+     * from the start of position 0. Positions without a known extent are
+     * assumed to have the given one. The result might be beyond the last
+     * position covered by the store.
+     */
+    public int getPositionForExtent(long extent, double unknownExtent) {
+        final int blockCount = getBlockCount();
+
+        int step = Integer.highestOneBit(blockCount);
+        int block = 0;
+        double sum = 0;
+
+        // Descend the Fenwick trees looking for the longest run of whole
+        // blocks whose extents add up to no more than the given one.
+        while (step > 0) {
+            final int next = block + step;
+            if (next <= blockCount) {
+                final int unknownCount = countPositions(block, next) - mBlockCountTree[next];
+                final double nodeExtent = mBlockExtentTree[next] + unknownCount * unknownExtent;
+
+                if (sum + nodeExtent <= extent) {
+                    block = next;
+                    sum += nodeExtent;
+                }
+            }
+
+            step >>= 1;
+        }
+
+        // The position is either within the next block or past the store.
+        // Blocks past the store are empty and always skipped by the descent.
+        final int gapEnd = mGapStart + mGapLength;
+        final int slotCount = getSlotCount();
+
+        int slot = Math.min(block << BLOCK_SHIFT, slotCount);
+        while (slot < slotCount) {
+            if (slot >= mGapStart && slot < gapEnd) {
+                slot = gapEnd;
+                continue;
+            }
+
+            final int value = mExtents[slot];
+            final double positionExtent = (value != 0 ? value - 1 : unknownExtent);
+            if (sum + positionExtent > extent) {
+                return (slot < mGapStart ? slot : slot - mGapLength);
+            }
+
+            sum += positionExtent;
+            slot++;
+        }
+
+        final int position = mSize;
+        if (unknownExtent <= 0) {
+            return position;
+        }
+
+        // Positions after the last one in the store are all unknown.
+        return position + (int) Math.min(Integer.MAX_VALUE - position,
+                (long) ((extent - sum) / unknownExtent));
+    }
+
+    public long getTotalExtent() {
+        return mTotalExtent;
+    }
+
+    public int getExtentCount() {
+        return mExtentCount;
+    }
+
+    public void clear() {
+        Arrays.fill(mExtents, 0, getSlotCount(), 0);
+        mSize = 0;
+        mGapStart = 0;
+        mGapLength = 0;
+
+        Arrays.fill(mBlockExtentTree, 0);
+        Arrays.fill(mBlockCountTree, 0);
+        mTotalExtent = 0;
+        mExtentCount = 0;
+    }
+
+    void offsetForRemoval(int positionStart, int itemCount) {
+        if (positionStart >= mSize) {
+            return;
+        }
+
+        final int removedCount = Math.min(positionStart + itemCount, mSize) - positionStart;
+
+        // The removed extents simply become part of the gap.
+        moveGap(positionStart);
+
+        final int removedStart = mGapStart + mGapLength;
+        for (int slot = removedStart; slot < removedStart + removedCount; slot++) {
+            final int value = mExtents[slot];
+            if (value != 0) {
+                addToBlock(slot, -(value - 1), -1);
+                mExtents[slot] = 0;
+            }
+        }
+        flushBlock();
+
+        mGapLength += removedCount;
+        mSize -= removedCount;
+    }
+
+    void offsetForAddition(int positionStart, int itemCount) {
+        if (positionStart >= mSize) {
+            return;
+        }
+
+        moveGap(positionStart);
+        ensureGapLength(itemCount);
+
+        // Take the new, unknown, extents from the start of the gap.
+        mGapStart += itemCount;
+        mGapLength -= itemCount;
+        mSize += itemCount;
+    }
+}
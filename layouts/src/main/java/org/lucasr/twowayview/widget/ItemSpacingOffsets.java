@@ -28,76 +28,6 @@ class ItemSpacingOffsets {
         mHorizontalSpacing = horizontalSpacing;
     }
 
-    /**
-     * Checks whether the given position is placed just after the item in the
-     * first lane of the layout taking items spans into account.
-     */
-    private boolean isSecondLane(BaseLayoutManager lm, int itemPosition, int lane) {
-        if (lane == 0 || itemPosition == 0) {
-            return false;
-        }
-
-        int previousLane = Spans.NO_LANE;
-        int previousPosition = itemPosition - 1;
-        while (previousPosition >= 0) {
-            lm.getLaneForPosition(mTempLaneInfo, previousPosition, TwoWayLayoutManager.DIRECTION_END);
-            previousLane = mTempLaneInfo.startLane;
-            if (previousLane != lane) {
-                break;
-            }
-
-            previousPosition--;
-        }
-
-        if(previousPosition>=0) {
-            final int previousLaneSpan = lm.getLaneSpanForPosition(previousPosition);
-            if (previousLane == 0) {
-                return (lane == previousLane + previousLaneSpan);
-            }
-        }
-
-        return false;
-    }
-
-    /**
-     * Checks whether the given position is placed at the start of a layout lane.
-     */
-    private static boolean isFirstChildInLane(BaseLayoutManager lm, int itemPosition) {
-        final int laneCount = lm.getLanes().getCount();
-        if (itemPosition >= laneCount) {
-            return false;
-        }
-
-        int count = 0;
-        for (int i = 0; i < itemPosition; i++) {
-            count += lm.getLaneSpanForPosition(i);
-            if (count >= laneCount) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    /**
-     * Checks whether the given position is placed at the end of a layout lane.
-     */
-    private static boolean isLastChildInLane(BaseLayoutManager lm, int itemPosition, int itemCount) {
-        final int laneCount = lm.getLanes().getCount();
-        if (itemPosition < itemCount - laneCount) {
-            return false;
-        }
-
-        // TODO: Figure out a robust way to compute this for layouts
-        // that are dynamically placed and might span multiple lanes.
-        if (lm instanceof SpannableGridLayoutManager ||
-                lm instanceof StaggeredGridLayoutManager) {
-            return false;
-        }
-
-        return true;
-    }
-
     public void setAddSpacingAtEnd(boolean spacingAtEnd) {
         mAddSpacingAtEnd = spacingAtEnd;
     }
@@ -120,7 +50,7 @@ class ItemSpacingOffsets {
         final boolean isVertical = lm.isVertical();
 
         final boolean firstLane = (lane == 0);
-        final boolean secondLane = isSecondLane(lm, itemPosition, lane);
+        final boolean secondLane = lm.isSecondLanePosition(itemPosition);
 
         final boolean lastLane = (lane + laneSpan == laneCount);
         final boolean beforeLastLane = (lane + laneSpan == laneCount - 1);
@@ -150,9 +80,9 @@ class ItemSpacingOffsets {
             laneOffsetEnd = (int) (laneSpacing * 0.5);
         }
 
-        final boolean isFirstInLane = isFirstChildInLane(lm, itemPosition);
+        final boolean isFirstInLane = lm.isFirstRowPosition(itemPosition);
         final boolean isLastInLane = !mAddSpacingAtEnd &&
-                isLastChildInLane(lm, itemPosition, itemCount);
+                lm.isLastRowPosition(itemPosition, itemCount);
 
         if (isVertical) {
             outRect.left = laneOffsetStart;
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import java.util.Arrays;
+
+/**
+ * Snapshots of the lane end edges taken every {@link #INTERVAL} positions
+ * while replaying the layout from position 0, see
+ * {@link BaseLayoutManager#moveLayoutToPosition}.
+ *
+ * The checkpoint at position {@code p} holds the lane edges right before the
+ * item at {@code p} is laid out, relative to lanes reset to offset 0. It only
+ * depends on the item entries before {@code p}, so it stays valid until one
+ * of those entries changes. Checkpoints are always valid from position 0 up
+ * to the last recorded one.
+ */
+class LaneCheckpoints {
+    static final int INTERVAL = 64;
+
+    private int[] mEdges = new int[0];
+    private int mLaneCount;
+    private int mCount;
+
+    /**
+     * Restores the lane end edges from the last checkpoint at or before
+     * the given position. The lanes are expected to have been reset to
+     * offset 0. Returns the position the replay should resume from.
+     */
+    int restore(int position, Spans spans) {
+        if (mCount == 0 || mLaneCount != spans.getCount()) {
+            return 0;
+        }
+
+        final int checkpoint = Math.min(position / INTERVAL, mCount - 1);
+        spans.setEndEdges(mEdges, checkpoint * mLaneCount);
+
+        return checkpoint * INTERVAL;
+    }
+
+    /**
+     * Records the current lane end edges if a checkpoint is due at the
+     * given position i.e. the replay is right before laying it out.
+     */
+    void save(int position, Spans spans) {
+        if (position % INTERVAL != 0) {
+            return;
+        }
+
+        final int laneCount = spans.getCount();
+        if (laneCount != mLaneCount) {
+            mLaneCount = laneCount;
+            mCount = 0;
+        }
+
+        final int checkpoint = position / INTERVAL;
+        if (checkpoint != mCount) {
+            return;
+        }
+
+        final int offset = checkpoint * laneCount;
+        if (offset + laneCount > mEdges.length) {
+            mEdges = Arrays.copyOf(mEdges, Math.max(offset + laneCount, mEdges.length * 2));
+        }
+
+        spans.getEndEdges(mEdges, offset);
+        mCount++;
+    }
+
+    /**
+     * Drops the checkpoints depending on the item entry at the given position.
+     */
+    void invalidateAfter(int position) {
+        mCount = Math.min(mCount, Math.max(0, position) / INTERVAL + 1);
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import android.content.Context;
+import android.util.AttributeSet;
+
+import org.lucasr.twowayview.TwoWayLayoutManager;
+import org.lucasr.twowayview.widget.TwoWayView.LayoutManagerFactory;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the layout managers declared in XML to the factories creating
+ * them, see {@link TwoWayView#registerLayoutManagerFactory(Class, LayoutManagerFactory)}.
+ * Safe to use from any thread.
+ *
+ * Only the classes resolved from each name are cached, keyed by the class
+ * loader of the inflating context. The registered factory for a class is
+ * looked up on every call, so a registration applies to all the lookups
+ * that follow it. Class loaders are weakly referenced, and so are the
+ * classes they define, so the cache doesn't keep them from being unloaded.
+ */
+class LayoutManagerFactories {
+    private static final Class<?>[] sConstructorSignature = new Class[] {
+            Context.class, AttributeSet.class};
+
+    // Keyed by class, so a class with the same name from another class
+    // loader doesn't pick them up.
+    private final ConcurrentHashMap<Class<?>, LayoutManagerFactory> mRegisteredFactories =
+            new ConcurrentHashMap<Class<?>, LayoutManagerFactory>();
+
+    private final Map<ClassLoader, ConcurrentHashMap<String, WeakReference<Class<? extends TwoWayLayoutManager>>>>
+            mClasses = Collections.synchronizedMap(new WeakHashMap<ClassLoader,
+                    ConcurrentHashMap<String, WeakReference<Class<? extends TwoWayLayoutManager>>>>());
+
+    private static class ReflectiveLayoutManagerFactory implements LayoutManagerFactory {
+        private final Constructor<? extends TwoWayLayoutManager> mConstructor;
+
+        public ReflectiveLayoutManagerFactory(Constructor<? extends TwoWayLayoutManager> constructor) {
+            mConstructor = constructor;
+        }
+
+        @Override
+        public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+            try {
+                return mConstructor.newInstance(context, attrs);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not instantiate TwoWayLayoutManager " +
+                                                "class: " + mConstructor.getName(), e);
+            }
+        }
+    }
+
+    public void register(Class<? extends TwoWayLayoutManager> clazz, LayoutManagerFactory factory) {
+        if (factory == null) {
+            throw new IllegalArgumentException("Factory must not be null");
+        }
+
+        mRegisteredFactories.put(clazz, factory);
+    }
+
+    private Class<? extends TwoWayLayoutManager> getClass(ClassLoader classLoader, String name)
+            throws ClassNotFoundException {
+        ConcurrentHashMap<String, WeakReference<Class<? extends TwoWayLayoutManager>>> classes;
+        synchronized (mClasses) {
+            classes = mClasses.get(classLoader);
+            if (classes == null) {
+                classes = new ConcurrentHashMap<String, WeakReference<Class<? extends TwoWayLayoutManager>>>();
+                mClasses.put(classLoader, classes);
+            }
+        }
+
+        final WeakReference<Class<? extends TwoWayLayoutManager>> cached = classes.get(name);
+        Class<? extends TwoWayLayoutManager> clazz = (cached != null ? cached.get() : null);
+        if (clazz == null) {
+            // Concurrent lookups might both load the class, which resolves
+            // to the same class either way.
+            clazz = classLoader.loadClass(name).asSubclass(TwoWayLayoutManager.class);
+            classes.put(name, new WeakReference<Class<? extends TwoWayLayoutManager>>(clazz));
+        }
+
+        return clazz;
+    }
+
+    /**
+     * Returns the registered factory for the named class, or one calling
+     * its {@code (Context, AttributeSet)} constructor by reflection.
+     */
+    public LayoutManagerFactory get(ClassLoader classLoader, String name)
+            throws ClassNotFoundException, NoSuchMethodException {
+        final Class<? extends TwoWayLayoutManager> clazz = getClass(classLoader, name);
+
+        final LayoutManagerFactory factory = mRegisteredFactories.get(clazz);
+        if (factory != null) {
+            return factory;
+        }
+
+        return new ReflectiveLayoutManagerFactory(clazz.getConstructor(sConstructorSignature));
+    }
+}
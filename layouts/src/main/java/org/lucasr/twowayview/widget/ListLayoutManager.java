@@ -38,6 +38,11 @@ public class ListLayoutManager extends BaseLayoutManager {
         super(context, attrs);
     }
 
+    @Override
+    boolean supportsFixedItemExtent() {
+        return true;
+    }
+
     @Override
     int getLaneCount() {
         return 1;
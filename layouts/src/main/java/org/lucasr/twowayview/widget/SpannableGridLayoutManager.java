@@ -18,8 +18,6 @@ package org.lucasr.twowayview.widget;
 
 import android.content.Context;
 import android.content.res.TypedArray;
-import android.os.Parcel;
-import android.os.Parcelable;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.Recycler;
 import android.support.v7.widget.RecyclerView.State;
@@ -45,44 +43,37 @@ public class SpannableGridLayoutManager extends GridLayoutManager {
         super(context, attrs);
     }
 
-    protected static class SpannableItemEntry extends BaseLayoutManager.ItemEntry {
-        private final int colSpan;
-        private final int rowSpan;
-
-        public SpannableItemEntry(int startLane, int anchorLane, int colSpan, int rowSpan) {
-            super(startLane, anchorLane);
-            this.colSpan = colSpan;
-            this.rowSpan = rowSpan;
-        }
-
-        public SpannableItemEntry(Parcel in) {
-            super(in);
-            this.colSpan = in.readInt();
-            this.rowSpan = in.readInt();
-        }
+    private boolean mMeasuring;
+    private SpanSizeLookup mSpanSizeLookup;
+
+    /**
+     * Provides the column and row spans of the items from the adapter data,
+     * without having to bind views. When set, the spans returned here take
+     * precedence over the ones in the children's layout params.
+     */
+    public interface SpanSizeLookup {
+        int getColSpan(int position);
+        int getRowSpan(int position);
+    }
 
-        @Override
-        public void writeToParcel(Parcel out, int flags) {
-            super.writeToParcel(out, flags);
-            out.writeInt(colSpan);
-            out.writeInt(rowSpan);
+    /**
+     * Sets the {@link SpanSizeLookup} used to find the spans of each item.
+     * With a lookup in place, jumping to a position no longer has to bind
+     * the items before it just to read their spans.
+     */
+    public void setSpanSizeLookup(SpanSizeLookup spanSizeLookup) {
+        if (mSpanSizeLookup == spanSizeLookup) {
+            return;
         }
 
-        public static final Parcelable.Creator<SpannableItemEntry> CREATOR
-                = new Parcelable.Creator<SpannableItemEntry>() {
-            @Override
-            public SpannableItemEntry createFromParcel(Parcel in) {
-                return new SpannableItemEntry(in);
-            }
-
-            @Override
-            public SpannableItemEntry[] newArray(int size) {
-                return new SpannableItemEntry[size];
-            }
-        };
+        mSpanSizeLookup = spanSizeLookup;
+        clearItemEntries();
+        requestLayout();
     }
 
-    private boolean mMeasuring;
+    public SpanSizeLookup getSpanSizeLookup() {
+        return mSpanSizeLookup;
+    }
 
     private int getChildWidth(int colSpan) {
         return getLanes().getLaneSizeH() * colSpan;
@@ -96,8 +87,14 @@ public class SpannableGridLayoutManager extends GridLayoutManager {
         return (isVertical ? lp.colSpan : lp.rowSpan);
     }
 
-    private static int getLaneSpan(SpannableItemEntry entry, boolean isVertical) {
-        return (isVertical ? entry.colSpan : entry.rowSpan);
+    private static int getLaneSpan(ItemEntries entries, int position, boolean isVertical) {
+        return (isVertical ? entries.getColSpan(position) : entries.getRowSpan(position));
+    }
+
+    @Override
+    boolean supportsFixedItemExtent() {
+        // Items spanning multiple rows can't have a fixed extent.
+        return false;
     }
 
     @Override
@@ -117,23 +114,22 @@ public class SpannableGridLayoutManager extends GridLayoutManager {
 
     @Override
     int getLaneSpanForPosition(int position) {
-        final SpannableItemEntry entry = (SpannableItemEntry) getItemEntryForPosition(position);
-        if (entry == null) {
+        final ItemEntries entries = getItemEntries();
+        if (!entries.hasItemEntry(position)) {
             throw new IllegalStateException("Could not find span for position " + position);
         }
 
-        return getLaneSpan(entry, isVertical());
+        return getLaneSpan(entries, position, isVertical());
     }
 
     @Override
-    void getLaneForPosition(LaneInfo outInfo, int position, int direction) {
-        final SpannableItemEntry entry = (SpannableItemEntry) getItemEntryForPosition(position);
-        if (entry != null) {
-            outInfo.set(entry.startLane, entry.anchorLane);
-            return;
-        }
+    boolean isLastRowPosition(int position, int itemCount) {
+        return isLastInLanesPosition(position, itemCount);
+    }
 
-        outInfo.setUndefined();
+    @Override
+    void getLaneForPosition(LaneInfo outInfo, int position, int direction) {
+        getItemEntries().getLane(position, outInfo);
     }
 
     @Override
@@ -167,31 +163,44 @@ public class SpannableGridLayoutManager extends GridLayoutManager {
     protected void moveLayoutToPosition(int position, int offset, Recycler recycler, State state) {
         final boolean isVertical = isVertical();
         final Spans spans = getLanes();
+        final ItemEntries entries = getItemEntries();
+
+        final LaneCheckpoints checkpoints = getLaneCheckpoints();
 
         spans.resetForOffset(0);
 
-        for (int i = 0; i <= position; i++) {
-            SpannableItemEntry entry = (SpannableItemEntry) getItemEntryForPosition(i);
-            if (entry == null) {
-                final View child = recycler.getViewForPosition(i);
-                entry = (SpannableItemEntry) cacheChildLaneAndSpan(child, DIRECTION_END);
+        // Resume from the closest checkpoint instead of replaying the
+        // layout all the way from the first position.
+        final int firstPosition = checkpoints.restore(position, spans);
+
+        for (int i = firstPosition; i <= position; i++) {
+            checkpoints.save(i, spans);
+
+            if (!entries.hasItemEntry(i)) {
+                if (mSpanSizeLookup != null) {
+                    cacheLaneAndSpans(i, getColSpanFromLookup(i), getRowSpanFromLookup(i),
+                            DIRECTION_END);
+                } else {
+                    final View child = recycler.getViewForPosition(i);
+                    cacheChildLaneAndSpan(child, DIRECTION_END);
+                }
             }
 
-            mTempLaneInfo.set(entry.startLane, entry.anchorLane);
+            entries.getLane(i, mTempLaneInfo);
 
             // The spans might have been invalidated because an added or
             // removed item. See BaseLayoutManager.invalidateItemLanes().
             if (mTempLaneInfo.isUndefined()) {
                 spans.findLane(mTempLaneInfo, getLaneSpanForPosition(i), DIRECTION_END);
-                entry.setLane(mTempLaneInfo);
+                entries.setLane(i, mTempLaneInfo);
             }
 
-            spans.getChildFrame(mTempRect, getChildWidth(entry.colSpan),
-                    getChildHeight(entry.rowSpan), mTempLaneInfo, DIRECTION_END);
+            spans.getChildFrame(mTempRect, getChildWidth(entries.getColSpan(i)),
+                    getChildHeight(entries.getRowSpan(i)), mTempLaneInfo, DIRECTION_END);
 
             if (i != position) {
-                pushChildFrame(entry, mTempRect, entry.startLane, getLaneSpan(entry, isVertical),
-                        DIRECTION_END);
+                pushChildFrame(i, mTempRect, mTempLaneInfo.startLane,
+                        getLaneSpan(entries, i, isVertical), DIRECTION_END);
             }
         }
 
@@ -200,31 +209,47 @@ public class SpannableGridLayoutManager extends GridLayoutManager {
         spans.offset(offset - (isVertical ? mTempRect.bottom : mTempRect.right));
     }
 
-    @Override
-    ItemEntry cacheChildLaneAndSpan(View child, int direction) {
-        final int position = getPosition(child);
+    private int getColSpanFromLookup(int position) {
+        final int colSpan = Math.max(1, mSpanSizeLookup.getColSpan(position));
+        return (isVertical() ? Math.min(colSpan, getLaneCount()) : colSpan);
+    }
+
+    private int getRowSpanFromLookup(int position) {
+        final int rowSpan = Math.max(1, mSpanSizeLookup.getRowSpan(position));
+        return (isVertical() ? rowSpan : Math.min(rowSpan, getLaneCount()));
+    }
 
-        mTempLaneInfo.setUndefined();
+    private void cacheLaneAndSpans(int position, int colSpan, int rowSpan, int direction) {
+        final ItemEntries entries = getItemEntries();
 
-        SpannableItemEntry entry = (SpannableItemEntry) getItemEntryForPosition(position);
-        if (entry != null) {
-            mTempLaneInfo.set(entry.startLane, entry.anchorLane);
-        }
+        final boolean hasEntry = entries.hasItemEntry(position);
+        entries.getLane(position, mTempLaneInfo);
 
         if (mTempLaneInfo.isUndefined()) {
-            getLaneForChild(mTempLaneInfo, child, direction);
+            getLanes().findLane(mTempLaneInfo, (isVertical() ? colSpan : rowSpan), direction);
         }
 
-        if (entry == null) {
-            final LayoutParams lp = (LayoutParams) child.getLayoutParams();
-            entry = new SpannableItemEntry(mTempLaneInfo.startLane, mTempLaneInfo.anchorLane,
-                    lp.colSpan, lp.rowSpan);
-            setItemEntryForPosition(position, entry);
+        if (!hasEntry) {
+            entries.putItemEntry(position, mTempLaneInfo.startLane, mTempLaneInfo.anchorLane);
+            entries.setSpans(position, colSpan, rowSpan);
         } else {
-            entry.setLane(mTempLaneInfo);
+            entries.setLane(position, mTempLaneInfo);
+        }
+    }
+
+    @Override
+    void cacheChildLaneAndSpan(View child, int direction) {
+        final int position = getPosition(child);
+        final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+
+        // Keep the layout params in sync with the lookup as they're
+        // used to measure and lay out the child.
+        if (mSpanSizeLookup != null) {
+            lp.colSpan = getColSpanFromLookup(position);
+            lp.rowSpan = getRowSpanFromLookup(position);
         }
 
-        return entry;
+        cacheLaneAndSpans(position, lp.colSpan, lp.rowSpan, direction);
     }
 
     @Override
@@ -21,21 +21,36 @@ import android.support.v7.widget.RecyclerView;
 
 import org.lucasr.twowayview.TwoWayLayoutManager;
 
+import java.util.Arrays;
+
+/**
+ * The lanes of a laned layout. Each lane is tracked as its start and end edges
+ * along the scrolling direction, and as its fixed start and end edges across
+ * it, all kept in flat int arrays. Lanes are also kept sorted by their edges
+ * so that the inner and outer edges of the layout are available right away.
+ */
 class Spans {
     public static final int NO_LANE = -1;
 
     private final BaseLayoutManager mLayout;
     private final boolean mIsVertical;
-    private final Rect[] mLanes;
-    private final Rect[] mSavedLanes;
     private final int mLaneSizeH;
     private final int mLaneSizeV;
 
-    private final Rect mTempRect = new Rect();
-    private final LaneInfo mTempLaneInfo = new LaneInfo();
+    // Lane edges along the scrolling direction (top and bottom when
+    // vertical) and across it (left and right when vertical).
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final int[] mCrossStarts;
+    private final int[] mCrossEnds;
+
+    private final int[] mSavedStarts;
+    private final int[] mSavedEnds;
 
-    private Integer mInnerStart;
-    private Integer mInnerEnd;
+    // Lanes sorted by their end edge (ascending) and by their start edge
+    // (descending), ties broken by lane index.
+    private final int[] mEndOrder;
+    private final int[] mStartOrder;
 
     public static class LaneInfo {
         public int startLane;
@@ -56,32 +71,38 @@ class Spans {
         }
     }
 
-    public Spans(BaseLayoutManager layout, int orientation, Rect[] lanes, int laneSizeH, int laneSizeV) {
+    private Spans(BaseLayoutManager layout, boolean isVertical, int laneCount, int laneSizeH,
+                  int laneSizeV) {
         mLayout = layout;
-        mIsVertical = (orientation == RecyclerView.VERTICAL);
-        mLanes = lanes;
+        mIsVertical = isVertical;
         mLaneSizeH = laneSizeH;
         mLaneSizeV = laneSizeV;
 
-        mSavedLanes = new Rect[mLanes.length];
-        for (int i = 0; i < mLanes.length; i++) {
-            mSavedLanes[i] = new Rect();
-        }
+        mStarts = new int[laneCount];
+        mEnds = new int[laneCount];
+        mCrossStarts = new int[laneCount];
+        mCrossEnds = new int[laneCount];
+
+        mSavedStarts = new int[laneCount];
+        mSavedEnds = new int[laneCount];
+
+        mEndOrder = new int[laneCount];
+        mStartOrder = new int[laneCount];
     }
 
-    public Spans(BaseLayoutManager layout, int laneCount) {
-        mLayout = layout;
-        mIsVertical = layout.isVertical();
+    public Spans(BaseLayoutManager layout, int orientation, Rect[] lanes, int laneSizeH, int laneSizeV) {
+        this(layout, orientation == RecyclerView.VERTICAL, lanes.length, laneSizeH, laneSizeV);
 
-        mLanes = new Rect[laneCount];
-        mSavedLanes = new Rect[laneCount];
-        for (int i = 0; i < laneCount; i++) {
-            mLanes[i] = new Rect();
-            mSavedLanes[i] = new Rect();
+        for (int i = 0; i < lanes.length; i++) {
+            setLane(i, lanes[i].left, lanes[i].top, lanes[i].right, lanes[i].bottom);
         }
 
-        mLaneSizeH = calculateLaneSizeH(layout, laneCount);
-        mLaneSizeV = calculateLaneSizeV(layout, laneCount);
+        sortLanes();
+    }
+
+    public Spans(BaseLayoutManager layout, int laneCount) {
+        this(layout, layout.isVertical(), laneCount, calculateLaneSizeH(layout, laneCount),
+                calculateLaneSizeV(layout, laneCount));
 
         final int paddingLeft = layout.getPaddingLeft();
         final int paddingTop = layout.getPaddingTop();
@@ -95,8 +116,10 @@ class Spans {
             final int r = (mIsVertical ? l + mLaneSizeH : l);
             final int b = (mIsVertical ? t : t + mLaneSizeV);
 
-            mLanes[i].set(l, t, r, b);
+            setLane(i, l, t, r, b);
         }
+
+        sortLanes();
     }
 
     public static int calculateLaneSizeH(BaseLayoutManager layout, int laneCount) {
@@ -127,9 +150,87 @@ class Spans {
             return height / laneCount;
     }
 
-    private void invalidateEdges() {
-        mInnerStart = null;
-        mInnerEnd = null;
+    private void setLane(int lane, int l, int t, int r, int b) {
+        mStarts[lane] = (mIsVertical ? t : l);
+        mEnds[lane] = (mIsVertical ? b : r);
+        mCrossStarts[lane] = (mIsVertical ? l : t);
+        mCrossEnds[lane] = (mIsVertical ? r : b);
+    }
+
+    private static boolean precedes(int lane, int otherLane, int[] edges, boolean ascending) {
+        final int edge = edges[lane];
+        final int otherEdge = edges[otherLane];
+        if (edge != otherEdge) {
+            return (ascending ? edge < otherEdge : edge > otherEdge);
+        }
+
+        return (lane < otherLane);
+    }
+
+    /**
+     * Returns the rank at which the given lane should be (or is) among
+     * the first {@code count} lanes in the order.
+     */
+    private static int findRank(int[] order, int count, int[] edges, int lane,
+                                boolean ascending) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (precedes(order[mid], lane, edges, ascending)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Sets the edge of the given lane and moves it to its new rank in the
+     * order sorted by these edges.
+     */
+    private static void setEdge(int[] order, int[] edges, int lane, int edge,
+                                boolean ascending) {
+        if (edges[lane] == edge) {
+            return;
+        }
+
+        final int count = order.length;
+        final int oldRank = findRank(order, count, edges, lane, ascending);
+        System.arraycopy(order, oldRank + 1, order, oldRank, count - oldRank - 1);
+
+        edges[lane] = edge;
+
+        final int newRank = findRank(order, count - 1, edges, lane, ascending);
+        System.arraycopy(order, newRank, order, newRank + 1, count - newRank - 1);
+        order[newRank] = lane;
+    }
+
+    private void setStart(int lane, int start) {
+        setEdge(mStartOrder, mStarts, lane, start, false);
+    }
+
+    private void setEnd(int lane, int end) {
+        setEdge(mEndOrder, mEnds, lane, end, true);
+    }
+
+    private static void sortLanes(int[] order, int[] edges, boolean ascending) {
+        for (int i = 0; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && precedes(i, order[j - 1], edges, ascending)) {
+                order[j] = order[j - 1];
+                j--;
+            }
+
+            order[j] = i;
+        }
+    }
+
+    private void sortLanes() {
+        sortLanes(mEndOrder, mEnds, true);
+        sortLanes(mStartOrder, mStarts, false);
     }
 
     public int getOrientation() {
@@ -137,15 +238,14 @@ class Spans {
     }
 
     public void save() {
-        for (int i = 0; i < mLanes.length; i++) {
-            mSavedLanes[i].set(mLanes[i]);
-        }
+        System.arraycopy(mStarts, 0, mSavedStarts, 0, mStarts.length);
+        System.arraycopy(mEnds, 0, mSavedEnds, 0, mEnds.length);
     }
 
     public void restore() {
-        for (int i = 0; i < mLanes.length; i++) {
-            mLanes[i].set(mSavedLanes[i]);
-        }
+        System.arraycopy(mSavedStarts, 0, mStarts, 0, mStarts.length);
+        System.arraycopy(mSavedEnds, 0, mEnds, 0, mEnds.length);
+        sortLanes();
     }
 
     public int getLaneSizeH() {
@@ -157,105 +257,114 @@ class Spans {
     }
 
     public int getCount() {
-        return mLanes.length;
-    }
-
-    private void offsetLane(int lane, int offset) {
-        mLanes[lane].offset(mIsVertical ? 0 : offset,
-                mIsVertical ? offset : 0);
+        return mStarts.length;
     }
 
     public void offset(int offset) {
-        for (int i = 0; i < mLanes.length; i++) {
-            offset(i, offset);
+        // Offsetting all lanes doesn't change their order.
+        for (int i = 0; i < mStarts.length; i++) {
+            mStarts[i] += offset;
+            mEnds[i] += offset;
         }
-
-        invalidateEdges();
     }
 
     public void offset(int lane, int offset) {
-        offsetLane(lane, offset);
-        invalidateEdges();
+        setStart(lane, mStarts[lane] + offset);
+        setEnd(lane, mEnds[lane] + offset);
     }
 
     public void getLane(int lane, Rect laneRect) {
-        laneRect.set(mLanes[lane]);
+        if (mIsVertical) {
+            laneRect.set(mCrossStarts[lane], mStarts[lane], mCrossEnds[lane], mEnds[lane]);
+        } else {
+            laneRect.set(mStarts[lane], mCrossStarts[lane], mEnds[lane], mCrossEnds[lane]);
+        }
+    }
+
+    /**
+     * Copies the end edge of each lane into the given array, starting
+     * at the given offset.
+     */
+    public void getEndEdges(int[] outEdges, int offset) {
+        System.arraycopy(mEnds, 0, outEdges, offset, mEnds.length);
+    }
+
+    /**
+     * Sets the end edge of each lane from the given array, starting
+     * at the given offset.
+     */
+    public void setEndEdges(int[] edges, int offset) {
+        System.arraycopy(edges, offset, mEnds, 0, mEnds.length);
+        sortLanes(mEndOrder, mEnds, true);
     }
 
     public int pushChildFrame(Rect outRect, int lane, int margin, int direction) {
-        final int delta;
+        final int frameStart = (mIsVertical ? outRect.top : outRect.left);
+        final int frameEnd = (mIsVertical ? outRect.bottom : outRect.right);
 
-        final Rect laneRect = mLanes[lane];
-        if (mIsVertical) {
-            if (direction == TwoWayLayoutManager.DIRECTION_END) {
-                delta = outRect.top - laneRect.bottom;
-                laneRect.bottom = outRect.bottom + margin;
-            } else {
-                delta = outRect.bottom - laneRect.top;
-                laneRect.top = outRect.top - margin;
-            }
+        final int delta;
+        if (direction == TwoWayLayoutManager.DIRECTION_END) {
+            delta = frameStart - mEnds[lane];
+            setEnd(lane, frameEnd + margin);
         } else {
-            if (direction == TwoWayLayoutManager.DIRECTION_END) {
-                delta = outRect.left - laneRect.right;
-                laneRect.right = outRect.right + margin;
-            } else {
-                delta = outRect.right - laneRect.left;
-                laneRect.left = outRect.left - margin;
-            }
+            delta = frameEnd - mStarts[lane];
+            setStart(lane, frameStart - margin);
         }
 
-        invalidateEdges();
-
         return delta;
     }
 
     public void popChildFrame(Rect outRect, int lane, int margin, int direction) {
-        final Rect laneRect = mLanes[lane];
-        if (mIsVertical) {
-            if (direction == TwoWayLayoutManager.DIRECTION_END) {
-                laneRect.top = outRect.bottom - margin;
-            } else {
-                laneRect.bottom = outRect.top + margin;
-            }
+        if (direction == TwoWayLayoutManager.DIRECTION_END) {
+            setStart(lane, (mIsVertical ? outRect.bottom : outRect.right) - margin);
         } else {
-            if (direction == TwoWayLayoutManager.DIRECTION_END) {
-                laneRect.left = outRect.right - margin;
-            } else {
-                laneRect.right = outRect.left + margin;
-            }
+            setEnd(lane, (mIsVertical ? outRect.top : outRect.left) + margin);
         }
-
-        invalidateEdges();
     }
 
     public void getChildFrame(Rect outRect, int childWidth, int childHeight, LaneInfo laneInfo,
                               int direction) {
-        final Rect startRect = mLanes[laneInfo.startLane];
+        final int startLane = laneInfo.startLane;
 
         // The anchor lane only applies when we're get child frame in the direction
         // of the forward scroll. We'll need to rethink this once we start working on
         // RTL support.
         final int anchorLane =
                 (direction == TwoWayLayoutManager.DIRECTION_END ? laneInfo.anchorLane : laneInfo.startLane);
-        final Rect anchorRect = mLanes[anchorLane];
 
         if (mIsVertical) {
-            outRect.left = startRect.left;
+            outRect.left = mCrossStarts[startLane];
             outRect.top =
-                    (direction == TwoWayLayoutManager.DIRECTION_END ? anchorRect.bottom : anchorRect.top - childHeight);
+                    (direction == TwoWayLayoutManager.DIRECTION_END ? mEnds[anchorLane] : mStarts[anchorLane] - childHeight);
         } else {
-            outRect.top = startRect.top;
+            outRect.top = mCrossStarts[startLane];
             outRect.left =
-                    (direction == TwoWayLayoutManager.DIRECTION_END ? anchorRect.right : anchorRect.left - childWidth);
+                    (direction == TwoWayLayoutManager.DIRECTION_END ? mEnds[anchorLane] : mStarts[anchorLane] - childWidth);
         }
 
         outRect.right = outRect.left + childWidth;
         outRect.bottom = outRect.top + childHeight;
     }
 
-    private boolean intersects(int start, int count, Rect r) {
+    /**
+     * Returns whether a 1-pixel deep frame spanning the given lanes and placed
+     * at the anchor lane edge would intersect any of them. Same as laying out
+     * the frame with getChildFrame() and checking Rect.intersects() against
+     * each lane, without touching any Rect.
+     */
+    private boolean intersects(int start, int count, int anchorLane, int direction) {
+        // As in getChildFrame(), the anchor lane only applies to the end direction.
+        final boolean isEnd = (direction == TwoWayLayoutManager.DIRECTION_END);
+        final int frameStart = (isEnd ? mEnds[anchorLane] : mStarts[start] - 1);
+        final int frameEnd = frameStart + 1;
+
+        final int frameCrossStart = mCrossStarts[start];
+        final int frameCrossEnd =
+                frameCrossStart + count * (mIsVertical ? mLaneSizeH : mLaneSizeV);
+
         for (int l = start; l < start + count; l++) {
-            if (Rect.intersects(mLanes[l], r)) {
+            if (mCrossStarts[l] < frameCrossEnd && frameCrossStart < mCrossEnds[l] &&
+                mStarts[l] < frameEnd && frameStart < mEnds[l]) {
                 return true;
             }
         }
@@ -265,14 +374,9 @@ class Spans {
 
     private int findLaneThatFitsSpan(int anchorLane, int laneSpan, int direction) {
         final int findStart = Math.max(0, anchorLane - laneSpan + 1);
-        final int findEnd = Math.min(findStart + laneSpan, mLanes.length - laneSpan + 1);
+        final int findEnd = Math.min(findStart + laneSpan, mStarts.length - laneSpan + 1);
         for (int l = findStart; l < findEnd; l++) {
-            mTempLaneInfo.set(l, anchorLane);
-
-            getChildFrame(mTempRect, mIsVertical ? laneSpan * mLaneSizeH : 1,
-                    mIsVertical ? 1 : laneSpan * mLaneSizeV, mTempLaneInfo, direction);
-
-            if (!intersects(l, laneSpan, mTempRect)) {
+            if (!intersects(l, laneSpan, anchorLane, direction)) {
                 return l;
             }
         }
@@ -280,90 +384,81 @@ class Spans {
         return Spans.NO_LANE;
     }
 
+    /**
+     * Finds the lane closest to the start (or end) edge that fits the given
+     * span, ties broken by lane index. Lanes are visited in edge order, so
+     * the first one that fits is the one to use. This is usually the first
+     * lane visited when the span is 1.
+     */
     public void findLane(LaneInfo outInfo, int laneSpan, int direction) {
         outInfo.setUndefined();
 
-        int targetEdge = (direction == TwoWayLayoutManager.DIRECTION_END ? Integer.MAX_VALUE : Integer.MIN_VALUE);
-        for (int l = 0; l < mLanes.length; l++) {
-            final int laneEdge;
-            if (mIsVertical) {
-                laneEdge = (direction == TwoWayLayoutManager.DIRECTION_END ? mLanes[l].bottom : mLanes[l].top);
-            } else {
-                laneEdge = (direction == TwoWayLayoutManager.DIRECTION_END ? mLanes[l].right : mLanes[l].left);
-            }
+        final boolean isEnd = (direction == TwoWayLayoutManager.DIRECTION_END);
+        final int[] order = (isEnd ? mEndOrder : mStartOrder);
+        final int[] edges = (isEnd ? mEnds : mStarts);
+        final int unboundedEdge = (isEnd ? Integer.MAX_VALUE : Integer.MIN_VALUE);
 
-            if ((direction == TwoWayLayoutManager.DIRECTION_END && laneEdge < targetEdge) ||
-                (direction == TwoWayLayoutManager.DIRECTION_START && laneEdge > targetEdge)) {
+        for (int i = 0; i < order.length; i++) {
+            final int l = order[i];
 
-                final int targetLane = findLaneThatFitsSpan(l, laneSpan, direction);
-                if (targetLane != NO_LANE) {
-                    targetEdge = laneEdge;
-                    outInfo.set(targetLane, l);
-                }
+            // Lanes at an unbounded edge are never picked and sort last.
+            if (edges[l] == unboundedEdge) {
+                break;
+            }
+
+            final int targetLane = findLaneThatFitsSpan(l, laneSpan, direction);
+            if (targetLane != NO_LANE) {
+                outInfo.set(targetLane, l);
+                return;
             }
         }
     }
 
     public void resetForDirection(int direction) {
-        for (Rect laneRect : mLanes) {
-            if (mIsVertical) {
-                if (direction == TwoWayLayoutManager.DIRECTION_START) {
-                    laneRect.bottom = laneRect.top;
-                } else {
-                    laneRect.top = laneRect.bottom;
-                }
-            } else {
-                if (direction == TwoWayLayoutManager.DIRECTION_START) {
-                    laneRect.right = laneRect.left;
-                } else {
-                    laneRect.left = laneRect.right;
-                }
-            }
+        if (direction == TwoWayLayoutManager.DIRECTION_START) {
+            System.arraycopy(mStarts, 0, mEnds, 0, mEnds.length);
+        } else {
+            System.arraycopy(mEnds, 0, mStarts, 0, mStarts.length);
         }
 
-        invalidateEdges();
+        sortLanes();
     }
 
     public void resetForOffset(int offset) {
-        for (Rect laneRect : mLanes) {
-            laneRect.offsetTo(mIsVertical ? laneRect.left : offset,
-                    mIsVertical ? offset : laneRect.top);
-
-            if (mIsVertical) {
-                laneRect.bottom = laneRect.top;
-            } else {
-                laneRect.right = laneRect.left;
-            }
-        }
-
-        invalidateEdges();
+        Arrays.fill(mStarts, offset);
+        Arrays.fill(mEnds, offset);
+        sortLanes();
     }
 
+    /**
+     * Returns the start edge closest to the end i.e. the edge up to which
+     * all lanes are filled towards the start.
+     */
     public int getInnerStart() {
-        if (mInnerStart != null) {
-            return mInnerStart;
-        }
-
-        mInnerStart = Integer.MIN_VALUE;
-
-
-        for (Rect laneRect : mLanes) {
-            mInnerStart = Math.max(mInnerStart, mIsVertical ? laneRect.top : laneRect.left);
-        }
-
-        return mInnerStart;
+        return (mStartOrder.length > 0 ? mStarts[mStartOrder[0]] : Integer.MIN_VALUE);
     }
 
+    /**
+     * Returns the end edge closest to the start i.e. the edge up to which
+     * all lanes are filled towards the end.
+     */
     public int getInnerEnd() {
-        if (mInnerEnd != null) {
-            return mInnerEnd;
-        }
+        return (mEndOrder.length > 0 ? mEnds[mEndOrder[0]] : Integer.MAX_VALUE);
+    }
 
-        mInnerEnd = Integer.MAX_VALUE;
-        for (Rect laneRect : mLanes) {
-            mInnerEnd = Math.min(mInnerEnd, mIsVertical ? laneRect.bottom : laneRect.right);
-        }
+    /**
+     * Returns the start edge closest to the start among all lanes.
+     */
+    public int getOuterStart() {
+        final int count = mStartOrder.length;
+        return (count > 0 ? mStarts[mStartOrder[count - 1]] : Integer.MAX_VALUE);
+    }
 
-        return mInnerEnd;
+    /**
+     * Returns the end edge closest to the end among all lanes.
+     */
+    public int getOuterEnd() {
+        final int count = mEndOrder.length;
+        return (count > 0 ? mEnds[mEndOrder[count - 1]] : Integer.MIN_VALUE);
     }
-}
\ No newline at end of file
+}
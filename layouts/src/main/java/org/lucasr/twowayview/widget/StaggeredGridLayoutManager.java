@@ -19,8 +19,6 @@ package org.lucasr.twowayview.widget;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Rect;
-import android.os.Parcel;
-import android.os.Parcelable;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.RecyclerView.Recycler;
 import android.support.v7.widget.RecyclerView.State;
@@ -33,45 +31,6 @@ import org.lucasr.twowayview.widget.Spans.LaneInfo;
 public class StaggeredGridLayoutManager extends GridLayoutManager {
     private static final String LOGTAG = "StaggeredGridLayoutManager";
 
-    protected static class StaggeredItemEntry extends BaseLayoutManager.ItemEntry {
-        private final int span;
-        private int width;
-        private int height;
-
-        public StaggeredItemEntry(int startLane, int anchorLane, int span) {
-            super(startLane, anchorLane);
-            this.span = span;
-        }
-
-        public StaggeredItemEntry(Parcel in) {
-            super(in);
-            this.span = in.readInt();
-            this.width = in.readInt();
-            this.height = in.readInt();
-        }
-
-        @Override
-        public void writeToParcel(Parcel out, int flags) {
-            super.writeToParcel(out, flags);
-            out.writeInt(span);
-            out.writeInt(width);
-            out.writeInt(height);
-        }
-
-        public static final Parcelable.Creator<StaggeredItemEntry> CREATOR
-                = new Parcelable.Creator<StaggeredItemEntry>() {
-            @Override
-            public StaggeredItemEntry createFromParcel(Parcel in) {
-                return new StaggeredItemEntry(in);
-            }
-
-            @Override
-            public StaggeredItemEntry[] newArray(int size) {
-                return new StaggeredItemEntry[size];
-            }
-        };
-    }
-
     public StaggeredGridLayoutManager(Context context, int orientation) {
         super(context, orientation);
     }
@@ -92,6 +51,12 @@ public class StaggeredGridLayoutManager extends GridLayoutManager {
         super(context, attrs);
     }
 
+    @Override
+    boolean supportsFixedItemExtent() {
+        // Staggered items have arbitrary extents.
+        return false;
+    }
+
     @Override
     int getLaneSpanForChild(View child) {
         LayoutParams lp = (LayoutParams) child.getLayoutParams();
@@ -100,23 +65,22 @@ public class StaggeredGridLayoutManager extends GridLayoutManager {
 
     @Override
     int getLaneSpanForPosition(int position) {
-        final StaggeredItemEntry entry = (StaggeredItemEntry) getItemEntryForPosition(position);
-        if (entry == null) {
+        final ItemEntries entries = getItemEntries();
+        if (!entries.hasItemEntry(position)) {
             throw new IllegalStateException("Could not find span for position " + position);
         }
 
-        return entry.span;
+        return entries.getSpan(position);
     }
 
     @Override
-    void getLaneForPosition(LaneInfo outInfo, int position, int direction) {
-        final StaggeredItemEntry entry = (StaggeredItemEntry) getItemEntryForPosition(position);
-        if (entry != null) {
-            outInfo.set(entry.startLane, entry.anchorLane);
-            return;
-        }
+    boolean isLastRowPosition(int position, int itemCount) {
+        return isLastInLanesPosition(position, itemCount);
+    }
 
-        outInfo.setUndefined();
+    @Override
+    void getLaneForPosition(LaneInfo outInfo, int position, int direction) {
+        getItemEntries().getLane(position, outInfo);
     }
 
     @Override
@@ -131,24 +95,30 @@ public class StaggeredGridLayoutManager extends GridLayoutManager {
     void moveLayoutToPosition(int position, int offset, Recycler recycler, State state) {
         final boolean isVertical = isVertical();
         final Spans spans = getLanes();
+        final ItemEntries entries = getItemEntries();
+        final LaneCheckpoints checkpoints = getLaneCheckpoints();
 
         spans.resetForOffset(0);
 
-        for (int i = 0; i <= position; i++) {
-            StaggeredItemEntry entry = (StaggeredItemEntry) getItemEntryForPosition(i);
+        // Resume from the closest checkpoint instead of replaying the
+        // layout all the way from the first position.
+        final int firstPosition = checkpoints.restore(position, spans);
+
+        for (int i = firstPosition; i <= position; i++) {
+            checkpoints.save(i, spans);
 
-            if (entry != null) {
-                mTempLaneInfo.set(entry.startLane, entry.anchorLane);
+            if (entries.hasItemEntry(i)) {
+                entries.getLane(i, mTempLaneInfo);
 
                 // The spans might have been invalidated because an added or
                 // removed item. See BaseLayoutManager.invalidateItemLanes().
                 if (mTempLaneInfo.isUndefined()) {
                     spans.findLane(mTempLaneInfo, getLaneSpanForPosition(i), DIRECTION_END);
-                    entry.setLane(mTempLaneInfo);
+                    entries.setLane(i, mTempLaneInfo);
                 }
 
-                spans.getChildFrame(mTempRect, entry.width, entry.height, mTempLaneInfo,
-                        DIRECTION_END);
+                spans.getChildFrame(mTempRect, entries.getWidth(i), entries.getHeight(i),
+                        mTempLaneInfo, DIRECTION_END);
             } else {
                 final View child = recycler.getViewForPosition(i);
 
@@ -161,17 +131,16 @@ public class StaggeredGridLayoutManager extends GridLayoutManager {
 
                 // The measureChild() call ensures an entry is created for
                 // this position.
-                entry = (StaggeredItemEntry) getItemEntryForPosition(i);
-
-                mTempLaneInfo.set(entry.startLane, entry.anchorLane);
+                entries.getLane(i, mTempLaneInfo);
                 spans.getChildFrame(mTempRect, getDecoratedMeasuredWidth(child),
                         getDecoratedMeasuredHeight(child), mTempLaneInfo, DIRECTION_END);
 
-                cacheItemFrame(entry, mTempRect);
+                cacheItemFrame(i, mTempRect);
             }
 
             if (i != position) {
-                pushChildFrame(entry, mTempRect, entry.startLane, entry.span, DIRECTION_END);
+                pushChildFrame(i, mTempRect, mTempLaneInfo.startLane, entries.getSpan(i),
+                        DIRECTION_END);
             }
         }
 
@@ -181,45 +150,45 @@ public class StaggeredGridLayoutManager extends GridLayoutManager {
     }
 
     @Override
-    ItemEntry cacheChildLaneAndSpan(View child, int direction) {
+    void cacheChildLaneAndSpan(View child, int direction) {
         final int position = getPosition(child);
+        final ItemEntries entries = getItemEntries();
 
-        mTempLaneInfo.setUndefined();
-
-        StaggeredItemEntry entry = (StaggeredItemEntry) getItemEntryForPosition(position);
-        if (entry != null) {
-            mTempLaneInfo.set(entry.startLane, entry.anchorLane);
-        }
+        final boolean hasEntry = entries.hasItemEntry(position);
+        entries.getLane(position, mTempLaneInfo);
 
         if (mTempLaneInfo.isUndefined()) {
             getLaneForChild(mTempLaneInfo, child, direction);
         }
 
-        if (entry == null) {
-            entry = new StaggeredItemEntry(mTempLaneInfo.startLane, mTempLaneInfo.anchorLane,
-                    getLaneSpanForChild(child));
-            setItemEntryForPosition(position, entry);
+        if (!hasEntry) {
+            entries.putItemEntry(position, mTempLaneInfo.startLane, mTempLaneInfo.anchorLane);
+            entries.setSpan(position, getLaneSpanForChild(child));
         } else {
-            entry.setLane(mTempLaneInfo);
+            entries.setLane(position, mTempLaneInfo);
         }
-
-        return entry;
     }
 
-    void cacheItemFrame(StaggeredItemEntry entry, Rect childFrame) {
-        entry.width = childFrame.right - childFrame.left;
-        entry.height = childFrame.bottom - childFrame.top;
+    void cacheItemFrame(int position, Rect childFrame) {
+        final ItemEntries entries = getItemEntries();
+        final int width = childFrame.right - childFrame.left;
+        final int height = childFrame.bottom - childFrame.top;
+
+        if (width != entries.getWidth(position) || height != entries.getHeight(position)) {
+            entries.setSize(position, width, height);
+            getLaneCheckpoints().invalidateAfter(position);
+        }
     }
 
     @Override
-    ItemEntry cacheChildFrame(View child, Rect childFrame) {
-        StaggeredItemEntry entry = (StaggeredItemEntry) getItemEntryForPosition(getPosition(child));
-        if (entry == null) {
+    int cacheChildFrame(View child, Rect childFrame) {
+        final int position = getPosition(child);
+        if (!getItemEntries().hasItemEntry(position)) {
             throw new IllegalStateException("Tried to cache frame on undefined item");
         }
 
-        cacheItemFrame(entry, childFrame);
-        return entry;
+        cacheItemFrame(position, childFrame);
+        return position;
     }
 
     @Override
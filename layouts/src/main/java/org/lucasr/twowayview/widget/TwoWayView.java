@@ -24,15 +24,66 @@ import android.util.AttributeSet;
 
 import org.lucasr.twowayview.TwoWayLayoutManager;
 
-import java.lang.reflect.Constructor;
-
+/**
+ * A {@link RecyclerView} restricted to {@link TwoWayLayoutManager}s, which
+ * can be declared in XML with the {@code twowayview_layoutManager}
+ * attribute.
+ *
+ * TwoWayView and the stock layout managers can be constructed on any
+ * thread, which allows inflating them in the background, e.g. with
+ * {@code AsyncLayoutInflater}. The layout manager factories are the only
+ * state shared between instances and they are thread-safe, see
+ * {@link #registerLayoutManagerFactory(Class, LayoutManagerFactory)}.
+ * Custom layout managers must not touch shared state from their
+ * {@code (Context, AttributeSet)} constructor either. Once attached, the
+ * view must only be used from the main thread.
+ */
 public class TwoWayView extends RecyclerView {
     private static final String LOGTAG = "TwoWayView";
 
-    private static final Class<?>[] sConstructorSignature = new Class[] {
-            Context.class, AttributeSet.class};
+    private static final String DEFAULT_PACKAGE_NAME = "org.lucasr.twowayview.widget";
+
+    private static final LayoutManagerFactories sLayoutManagerFactories =
+            new LayoutManagerFactories();
+
+    static {
+        registerLayoutManagerFactory(ListLayoutManager.class, new LayoutManagerFactory() {
+            @Override
+            public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+                return new ListLayoutManager(context, attrs);
+            }
+        });
+
+        registerLayoutManagerFactory(GridLayoutManager.class, new LayoutManagerFactory() {
+            @Override
+            public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+                return new GridLayoutManager(context, attrs);
+            }
+        });
+
+        registerLayoutManagerFactory(StaggeredGridLayoutManager.class, new LayoutManagerFactory() {
+            @Override
+            public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+                return new StaggeredGridLayoutManager(context, attrs);
+            }
+        });
 
-    final Object[] sConstructorArgs = new Object[2];
+        registerLayoutManagerFactory(SpannableGridLayoutManager.class, new LayoutManagerFactory() {
+            @Override
+            public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+                return new SpannableGridLayoutManager(context, attrs);
+            }
+        });
+    }
+
+    /**
+     * Creates the layout manager declared with the
+     * {@code twowayview_layoutManager} attribute. Implementations may be
+     * called from any thread.
+     */
+    public interface LayoutManagerFactory {
+        TwoWayLayoutManager create(Context context, AttributeSet attrs);
+    }
 
     public TwoWayView(Context context) {
         this(context, null);
@@ -56,30 +107,42 @@ public class TwoWayView extends RecyclerView {
         a.recycle();
     }
 
-    private void loadLayoutManagerFromName(Context context, AttributeSet attrs, String name) {
-        try {
-            final int dotIndex = name.indexOf('.');
-            if (dotIndex == -1) {
-                name = "org.lucasr.twowayview.widget." + name;
-            } else if (dotIndex == 0) {
-                final String packageName = context.getPackageName();
-                name = packageName + "." + name;
-            }
+    /**
+     * Registers the factory used to create the layout manager of the given
+     * class when it is declared in XML, instead of looking up its
+     * {@code (Context, AttributeSet)} constructor by reflection. The stock
+     * layout managers are registered by default. Can be called from any
+     * thread, usually from {@code Application.onCreate()}, and applies to
+     * the views constructed after it returns.
+     */
+    public static void registerLayoutManagerFactory(Class<? extends TwoWayLayoutManager> clazz,
+                                                    LayoutManagerFactory factory) {
+        sLayoutManagerFactories.register(clazz, factory);
+    }
 
-            Class<? extends TwoWayLayoutManager> clazz =
-                    context.getClassLoader().loadClass(name).asSubclass(TwoWayLayoutManager.class);
+    private static String getFullClassName(Context context, String name) {
+        final int dotIndex = name.indexOf('.');
+        if (dotIndex == -1) {
+            return DEFAULT_PACKAGE_NAME + "." + name;
+        } else if (dotIndex == 0) {
+            return context.getPackageName() + name;
+        }
 
-            Constructor<? extends TwoWayLayoutManager> constructor =
-                    clazz.getConstructor(sConstructorSignature);
+        return name;
+    }
 
-            sConstructorArgs[0] = context;
-            sConstructorArgs[1] = attrs;
+    private void loadLayoutManagerFromName(Context context, AttributeSet attrs, String name) {
+        name = getFullClassName(context, name);
 
-            setLayoutManager(constructor.newInstance(sConstructorArgs));
+        final LayoutManagerFactory factory;
+        try {
+            factory = sLayoutManagerFactories.get(context.getClassLoader(), name);
         } catch (Exception e) {
             throw new IllegalStateException("Could not load TwoWayLayoutManager from " +
                                              "class: " + name, e);
         }
+
+        setLayoutManager(factory.create(context, attrs));
     }
 
     @Override
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the packed ItemEntries against the layout it replaced, one
+ * object per position kept in a SparseArray, for a staggered grid at
+ * 10k, 100k and 1M positions. Reports the retained heap and the bytes
+ * allocated while filling each store, then while laying the positions
+ * out again, which is what happens on every relayout.
+ *
+ * <p>This is not part of the unit tests, run it with
+ * {@code ./gradlew :layouts:benchmark}. Allocations are only reported on
+ * JVMs that can count them per thread, e.g. HotSpot.
+ */
+public class ItemEntriesMemoryBenchmark {
+    private static final int[] SIZES = { 10000, 100000, 1000000 };
+    private static final int LANE_COUNT = 3;
+
+    private static final long UNKNOWN = -1;
+
+    private com.sun.management.ThreadMXBean mThreadBean;
+
+    /**
+     * The per-position object of the previous layout, as used by
+     * StaggeredGridLayoutManager.
+     */
+    private static class LegacyItemEntry {
+        private int startLane;
+        private int anchorLane;
+        private int[] spanMargins;
+        private final int span;
+        private int width;
+        private int height;
+
+        LegacyItemEntry(int startLane, int anchorLane, int span) {
+            this.startLane = startLane;
+            this.anchorLane = anchorLane;
+            this.span = span;
+        }
+
+        void setLane(int startLane, int anchorLane) {
+            this.startLane = startLane;
+            this.anchorLane = anchorLane;
+        }
+    }
+
+    /**
+     * Mirrors android.util.SparseArray, whose methods are stubbed out in
+     * JVM tests, for keys appended in ascending order.
+     */
+    private static class LegacyItemEntries {
+        private int[] mKeys = new int[10];
+        private Object[] mValues = new Object[10];
+        private int mSize;
+
+        private int indexOfKey(int key) {
+            return Arrays.binarySearch(mKeys, 0, mSize, key);
+        }
+
+        LegacyItemEntry get(int position) {
+            final int index = indexOfKey(position);
+            return (index >= 0 ? (LegacyItemEntry) mValues[index] : null);
+        }
+
+        void put(int position, LegacyItemEntry entry) {
+            final int index = indexOfKey(position);
+            if (index >= 0) {
+                mValues[index] = entry;
+                return;
+            }
+
+            if (mSize == mKeys.length) {
+                final int newLength = (mSize <= 4 ? 8 : mSize * 2);
+                mKeys = Arrays.copyOf(mKeys, newLength);
+                mValues = Arrays.copyOf(mValues, newLength);
+            }
+
+            mKeys[mSize] = position;
+            mValues[mSize] = entry;
+            mSize++;
+        }
+    }
+
+    /**
+     * Lays the positions out like the previous StaggeredGridLayoutManager,
+     * which only created an entry for positions it had not seen before.
+     */
+    private static Object fillLegacy(LegacyItemEntries entries, int size) {
+        for (int position = 0; position < size; position++) {
+            final int lane = position % LANE_COUNT;
+
+            LegacyItemEntry entry = entries.get(position);
+            if (entry == null) {
+                entry = new LegacyItemEntry(lane, lane, 1);
+                entries.put(position, entry);
+            } else {
+                entry.setLane(lane, lane);
+            }
+
+            entry.width = 100;
+            entry.height = 100 + position % 50;
+        }
+
+        return entries;
+    }
+
+    private static Object fillPacked(ItemEntries entries, int size) {
+        for (int position = 0; position < size; position++) {
+            final int lane = position % LANE_COUNT;
+            entries.putItemEntry(position, lane, lane);
+            entries.setSpan(position, 1);
+            entries.setSize(position, 100, 100 + position % 50);
+        }
+
+        return entries;
+    }
+
+    private static long getUsedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long getAllocatedBytes() {
+        if (mThreadBean == null) {
+            return UNKNOWN;
+        }
+
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long getAllocatedSince(long allocated, long now) {
+        return (allocated != UNKNOWN ? now - allocated : UNKNOWN);
+    }
+
+    private static String formatBytes(long bytes, int size) {
+        if (bytes == UNKNOWN) {
+            return String.format("%12s", "n/a");
+        }
+
+        return String.format("%,12d B (%5.1f B/position)", bytes, (double) bytes / size);
+    }
+
+    @Test
+    public void compareMemoryUsage() {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+            mThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            mThreadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        // Warm up both paths.
+        fillLegacy(new LegacyItemEntries(), SIZES[0]);
+        fillPacked(new ItemEntries(), SIZES[0]);
+
+        System.out.println("ItemEntries memory, staggered grid with " + LANE_COUNT + " lanes");
+
+        for (int size : SIZES) {
+            long before = getUsedMemory();
+            long allocated = getAllocatedBytes();
+            final LegacyItemEntries legacy = new LegacyItemEntries();
+            fillLegacy(legacy, size);
+            final long legacyAllocated = getAllocatedSince(allocated, getAllocatedBytes());
+            final long legacyRetained = getUsedMemory() - before;
+
+            allocated = getAllocatedBytes();
+            fillLegacy(legacy, size);
+            final long legacyRelayout = getAllocatedSince(allocated, getAllocatedBytes());
+
+            before = getUsedMemory();
+            allocated = getAllocatedBytes();
+            final ItemEntries packed = new ItemEntries();
+            fillPacked(packed, size);
+            final long packedAllocated = getAllocatedSince(allocated, getAllocatedBytes());
+            final long packedRetained = getUsedMemory() - before;
+
+            allocated = getAllocatedBytes();
+            fillPacked(packed, size);
+            final long packedRelayout = getAllocatedSince(allocated, getAllocatedBytes());
+
+            System.out.println(String.format("%,d positions", size));
+            System.out.println("  legacy retained:  " + formatBytes(legacyRetained, size));
+            System.out.println("  packed retained:  " + formatBytes(packedRetained, size));
+            System.out.println("  legacy allocated: " + formatBytes(legacyAllocated, size));
+            System.out.println("  packed allocated: " + formatBytes(packedAllocated, size));
+            System.out.println("  legacy relayout:  " + formatBytes(legacyRelayout, size));
+            System.out.println("  packed relayout:  " + formatBytes(packedRelayout, size));
+
+            // Keep both stores reachable until measured.
+            assertEquals(size, legacy.mSize);
+            assertEquals(size, packed.size());
+
+            // Laying out known positions again never allocates, in either.
+            if (mThreadBean != null) {
+                assertEquals(0, legacyRelayout);
+                assertEquals(0, packedRelayout);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the prefix sums of ItemExtents against a plain list of extents
+ * across random re-measures, insertions and removals.
+ */
+public class ItemExtentsTest {
+    private static final int UNKNOWN = -1;
+
+    private static final int ROUNDS = 100;
+    private static final int OPERATIONS = 300;
+    private static final int MAX_POSITION = 700;
+
+    private final ItemExtents mExtents = new ItemExtents();
+
+    // Extent of every position in the store, UNKNOWN if not measured.
+    private final List<Integer> mExpected = new ArrayList<Integer>();
+
+    private void setExtent(int position, int extent) {
+        mExtents.setExtent(position, extent);
+
+        while (mExpected.size() <= position) {
+            mExpected.add(UNKNOWN);
+        }
+        mExpected.set(position, extent);
+    }
+
+    private void offsetForAddition(int positionStart, int itemCount) {
+        mExtents.offsetForAddition(positionStart, itemCount);
+
+        if (positionStart < mExpected.size()) {
+            for (int i = 0; i < itemCount; i++) {
+                mExpected.add(positionStart, UNKNOWN);
+            }
+        }
+    }
+
+    private void offsetForRemoval(int positionStart, int itemCount) {
+        mExtents.offsetForRemoval(positionStart, itemCount);
+
+        final int end = Math.min(positionStart + itemCount, mExpected.size());
+        for (int i = positionStart; i < end; i++) {
+            mExpected.remove(positionStart);
+        }
+    }
+
+    private long getExpectedExtentBefore(int position) {
+        long extent = 0;
+        for (int i = 0; i < Math.min(position, mExpected.size()); i++) {
+            if (mExpected.get(i) != UNKNOWN) {
+                extent += mExpected.get(i);
+            }
+        }
+
+        return extent;
+    }
+
+    private int getExpectedCountBefore(int position) {
+        int count = 0;
+        for (int i = 0; i < Math.min(position, mExpected.size()); i++) {
+            if (mExpected.get(i) != UNKNOWN) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private int getExpectedPositionForExtent(long extent, int unknownExtent) {
+        long sum = 0;
+        for (int position = 0; position < mExpected.size(); position++) {
+            final int value = mExpected.get(position);
+            final int positionExtent = (value != UNKNOWN ? value : unknownExtent);
+            if (sum + positionExtent > extent) {
+                return position;
+            }
+
+            sum += positionExtent;
+        }
+
+        final int position = mExpected.size();
+        if (unknownExtent <= 0) {
+            return position;
+        }
+
+        return position + (int) ((extent - sum) / unknownExtent);
+    }
+
+    private void verify(Random random) {
+        long totalExtent = 0;
+        int extentCount = 0;
+
+        for (int position = 0; position <= mExpected.size() + 1; position++) {
+            final int expected = (position < mExpected.size() ? mExpected.get(position) : UNKNOWN);
+            assertEquals(expected != UNKNOWN, mExtents.hasExtent(position));
+            assertEquals(expected != UNKNOWN ? expected : 0, mExtents.getExtent(position));
+
+            if (expected != UNKNOWN) {
+                totalExtent += expected;
+                extentCount++;
+            }
+        }
+
+        assertEquals(totalExtent, mExtents.getTotalExtent());
+        assertEquals(extentCount, mExtents.getExtentCount());
+
+        for (int i = 0; i < 20; i++) {
+            final int position = random.nextInt(mExpected.size() + 2);
+            assertEquals(getExpectedExtentBefore(position), mExtents.getExtentBefore(position));
+            assertEquals(getExpectedCountBefore(position), mExtents.getExtentCountBefore(position));
+        }
+
+        for (int i = 0; i < 20; i++) {
+            final long extent = random.nextInt((int) totalExtent + 2000);
+            final int unknownExtent = random.nextInt(4) * 25;
+            assertEquals("extent " + extent + ", unknown " + unknownExtent,
+                    getExpectedPositionForExtent(extent, unknownExtent),
+                    mExtents.getPositionForExtent(extent, unknownExtent));
+        }
+    }
+
+    @Test
+    public void prefixSumsMatchNaiveSums() {
+        final Random random = new Random(42);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            mExtents.clear();
+            mExpected.clear();
+
+            for (int i = 0; i < OPERATIONS; i++) {
+                final int size = mExpected.size();
+                final int operation = random.nextInt(10);
+
+                if (operation < 5 || size == 0) {
+                    // Re-measures cluster around the laid out positions
+                    // like they do while scrolling.
+                    final int position = (size > 0 && random.nextBoolean()
+                            ? random.nextInt(size) : random.nextInt(MAX_POSITION));
+                    setExtent(position, random.nextInt(200));
+                } else if (operation < 7) {
+                    offsetForAddition(random.nextInt(size + 1),
+                            1 + random.nextInt(random.nextBoolean() ? 3 : 150));
+                } else if (operation < 9) {
+                    offsetForRemoval(random.nextInt(size),
+                            1 + random.nextInt(random.nextBoolean() ? 3 : 150));
+                } else {
+                    // Append past the end, after the gap was moved around.
+                    setExtent(size + random.nextInt(100), random.nextInt(200));
+                }
+
+                verify(random);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.util.AttributeSet;
+
+import org.junit.Test;
+import org.lucasr.twowayview.TwoWayLayoutManager;
+import org.lucasr.twowayview.widget.TwoWayView.LayoutManagerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolves layout managers by name from a thread pool, the way background
+ * inflation does, while factories get registered, and checks that class
+ * loaders are not retained.
+ */
+public class LayoutManagerFactoriesTest {
+    private static final int THREAD_COUNT = 8;
+    private static final int LOOKUP_COUNT = 2000;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    private static final String REFLECTIVE_NAME = ReflectiveLayoutManager.class.getName();
+    private static final String REGISTERED_NAME = RegisteredLayoutManager.class.getName();
+
+    // Set once the concurrent lookups can no longer get the reflective
+    // factory for RegisteredLayoutManager.
+    private static volatile boolean sRegistered;
+
+    private final LayoutManagerFactories mFactories = new LayoutManagerFactories();
+    private final ClassLoader mClassLoader = getClass().getClassLoader();
+
+    public static class ReflectiveLayoutManager extends ListLayoutManager {
+        public ReflectiveLayoutManager(Context context, AttributeSet attrs) {
+            super(context, RecyclerView.VERTICAL);
+        }
+    }
+
+    public static class RegisteredLayoutManager extends ListLayoutManager {
+        public RegisteredLayoutManager(Context context, AttributeSet attrs) {
+            super(context, RecyclerView.VERTICAL);
+        }
+    }
+
+    private static final LayoutManagerFactory sFactory = new LayoutManagerFactory() {
+        @Override
+        public TwoWayLayoutManager create(Context context, AttributeSet attrs) {
+            return new RegisteredLayoutManager(context, attrs);
+        }
+    };
+
+    private static void awaitAll(List<Future<Void>> results) throws Exception {
+        for (Future<Void> result : results) {
+            result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void reflectiveFactoryCallsConstructor() throws Exception {
+        final LayoutManagerFactory factory = mFactories.get(mClassLoader, REFLECTIVE_NAME);
+        assertEquals(ReflectiveLayoutManager.class, factory.create(null, null).getClass());
+    }
+
+    @Test(expected = ClassNotFoundException.class)
+    public void unknownClassThrows() throws Exception {
+        mFactories.get(mClassLoader, REFLECTIVE_NAME + "Unknown");
+    }
+
+    @Test
+    public void registrationAppliesToResolvedClasses() throws Exception {
+        // Resolve the class before registering its factory.
+        assertEquals(RegisteredLayoutManager.class,
+                mFactories.get(mClassLoader, REGISTERED_NAME).create(null, null).getClass());
+
+        mFactories.register(RegisteredLayoutManager.class, sFactory);
+        assertSame(sFactory, mFactories.get(mClassLoader, REGISTERED_NAME));
+    }
+
+    @Test
+    public void concurrentLookupsSeeRegistration() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final CountDownLatch halfwaySignal = new CountDownLatch(LOOKUP_COUNT / 2);
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < LOOKUP_COUNT; i++) {
+                final String name = (i % 2 == 0 ? REGISTERED_NAME : REFLECTIVE_NAME);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // Release all the lookups at once, so that the first
+                        // ones of each class race each other.
+                        startSignal.await();
+
+                        final boolean wasRegistered = sRegistered;
+                        final LayoutManagerFactory factory = mFactories.get(mClassLoader, name);
+                        final TwoWayLayoutManager layout = factory.create(null, null);
+                        halfwaySignal.countDown();
+
+                        if (name.equals(REFLECTIVE_NAME)) {
+                            assertEquals(ReflectiveLayoutManager.class, layout.getClass());
+                        } else if (wasRegistered) {
+                            // Lookups after the registration never get a
+                            // stale factory.
+                            assertSame(sFactory, factory);
+                        } else {
+                            assertEquals(RegisteredLayoutManager.class, layout.getClass());
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            startSignal.countDown();
+
+            halfwaySignal.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            mFactories.register(RegisteredLayoutManager.class, sFactory);
+            sRegistered = true;
+
+            awaitAll(results);
+        } finally {
+            sRegistered = false;
+            executor.shutdownNow();
+        }
+
+        assertSame(sFactory, mFactories.get(mClassLoader, REGISTERED_NAME));
+    }
+
+    @Test
+    public void classLoadersAreNotRetained() throws Exception {
+        ClassLoader classLoader = new ClassLoader(mClassLoader) {};
+        final WeakReference<ClassLoader> reference = new WeakReference<ClassLoader>(classLoader);
+
+        assertEquals(ReflectiveLayoutManager.class,
+                mFactories.get(classLoader, REFLECTIVE_NAME).create(null, null).getClass());
+        classLoader = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(reference.get());
+
+        // Lookups keep working for the other class loaders.
+        assertTrue(mFactories.get(mClassLoader, REFLECTIVE_NAME) != null);
+    }
+}
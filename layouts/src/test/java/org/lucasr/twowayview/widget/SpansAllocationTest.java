@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Lucas Rocha
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lucasr.twowayview.widget;
+
+import android.graphics.Rect;
+import android.support.v7.widget.RecyclerView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lucasr.twowayview.TwoWayLayoutManager;
+import org.lucasr.twowayview.widget.Spans.LaneInfo;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays the lane bookkeeping of a 10k-pixel fling through a staggered grid,
+ * i.e. what BaseLayoutManager does with its Spans while filling and recycling
+ * children, and checks that it doesn't allocate.
+ */
+public class SpansAllocationTest {
+    private static final int LANE_COUNT = 3;
+    private static final int LANE_SIZE = 100;
+    private static final int VIEWPORT_EXTENT = 1000;
+
+    private static final int FLING_DISTANCE = 10000;
+    private static final int FRAME_DELTA = 50;
+
+    // Enough for all the children attached at once.
+    private static final int MAX_CHILDREN = 128;
+
+    private final com.sun.management.ThreadMXBean mThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Spans mSpans;
+    private final LaneInfo mLaneInfo = new LaneInfo();
+
+    // Attached children as a ring buffer, in adapter order.
+    private final Rect[] mChildFrames = new Rect[MAX_CHILDREN];
+    private final int[] mChildLanes = new int[MAX_CHILDREN];
+    private int mFirstChild;
+    private int mChildCount;
+    private int mNextPosition;
+
+    @Before
+    public void setUp() {
+        final Rect[] lanes = new Rect[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            lanes[i] = new Rect();
+            lanes[i].left = i * LANE_SIZE;
+            lanes[i].right = lanes[i].left + LANE_SIZE;
+        }
+
+        mSpans = new Spans(null, RecyclerView.VERTICAL, lanes, LANE_SIZE, 0);
+
+        for (int i = 0; i < MAX_CHILDREN; i++) {
+            mChildFrames[i] = new Rect();
+        }
+
+        mFirstChild = 0;
+        mChildCount = 0;
+        mNextPosition = 0;
+    }
+
+    private static int getItemExtent(int position) {
+        return 40 + (position * 37) % 80;
+    }
+
+    private void fillEnd() {
+        while (mSpans.getInnerEnd() < VIEWPORT_EXTENT) {
+            final int index = (mFirstChild + mChildCount) % MAX_CHILDREN;
+            final Rect frame = mChildFrames[index];
+
+            mSpans.findLane(mLaneInfo, 1, TwoWayLayoutManager.DIRECTION_END);
+            mSpans.getChildFrame(frame, LANE_SIZE, getItemExtent(mNextPosition), mLaneInfo,
+                    TwoWayLayoutManager.DIRECTION_END);
+            mSpans.pushChildFrame(frame, mLaneInfo.startLane, 0,
+                    TwoWayLayoutManager.DIRECTION_END);
+
+            mChildLanes[index] = mLaneInfo.startLane;
+            mChildCount++;
+            mNextPosition++;
+        }
+    }
+
+    private void recycleStart() {
+        while (mChildCount > 0 && mChildFrames[mFirstChild].bottom < 0) {
+            mSpans.popChildFrame(mChildFrames[mFirstChild], mChildLanes[mFirstChild], 0,
+                    TwoWayLayoutManager.DIRECTION_END);
+
+            mFirstChild = (mFirstChild + 1) % MAX_CHILDREN;
+            mChildCount--;
+        }
+    }
+
+    private void fling() {
+        fillEnd();
+
+        for (int scrolled = 0; scrolled < FLING_DISTANCE; scrolled += FRAME_DELTA) {
+            mSpans.offset(-FRAME_DELTA);
+            for (int i = 0; i < mChildCount; i++) {
+                final Rect frame = mChildFrames[(mFirstChild + i) % MAX_CHILDREN];
+                frame.top -= FRAME_DELTA;
+                frame.bottom -= FRAME_DELTA;
+            }
+
+            recycleStart();
+            fillEnd();
+        }
+    }
+
+    private long getAllocatedBytes() {
+        return mThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void flingDoesNotAllocate() {
+        assertTrue(mThreadBean.isThreadAllocatedMemorySupported());
+        mThreadBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Warm up, so that class loading and the interpreter don't count.
+        for (int i = 0; i < 20; i++) {
+            setUp();
+            fling();
+        }
+
+        setUp();
+
+        final long overheadStart = getAllocatedBytes();
+        final long overhead = getAllocatedBytes() - overheadStart;
+
+        final long start = getAllocatedBytes();
+        fling();
+        final long allocated = getAllocatedBytes() - start - overhead;
+
+        assertTrue(mNextPosition > FLING_DISTANCE / 120);
+        assertEquals(0, allocated);
+    }
+}